@@ -0,0 +1,73 @@
+package ninja.trek;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * Writes the pack as loose files under resourcepacks/<pack>/; files of the previous export stay
+ * in place unless they are rewritten or removed.
+ */
+public class DirectoryPackOutput implements PackOutput {
+    private final Path root;
+
+    public DirectoryPackOutput(Path root) {
+        this.root = root;
+    }
+
+    @Override
+    public Entry prepare(String path, byte[] data) {
+        return new Entry(path, data, data.length, 0, false);
+    }
+
+    @Override
+    public void write(Entry entry) throws IOException {
+        Path file = root.resolve(entry.path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, entry.data);
+    }
+
+    @Override
+    public byte[] readExisting(String path) throws IOException {
+        try {
+            return Files.readAllBytes(root.resolve(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean hasExisting(String path) {
+        return Files.isRegularFile(root.resolve(path));
+    }
+
+    @Override
+    public void keep(String path) {
+        // Already in place
+    }
+
+    @Override
+    public void remove(String path) throws IOException {
+        Files.deleteIfExists(root.resolve(path));
+    }
+
+    // Several files can be written at once
+    @Override
+    public int getWriterThreads() {
+        return 2;
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package ninja.trek;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records what every exported texture was built from, in repal_data/manifest.json inside the pack,
+ * so a re-export only rebuilds outputs whose source, layer settings, palette or engine changed and
+ * drops the ones that are no longer produced. Outputs are keyed by their path relative to the pack
+ * root.
+ */
+public class ExportManifest {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final String PATH = "repal_data/manifest.json";
+    private static final int FORMAT = 1;
+
+    public static final class Entry {
+        private final long sourceHash;
+        private final long paramsHash;
+        private final long paletteHash;
+        private final int engineVersion;
+
+        public Entry(long sourceHash, long paramsHash, long paletteHash, int engineVersion) {
+            this.sourceHash = sourceHash;
+            this.paramsHash = paramsHash;
+            this.paletteHash = paletteHash;
+            this.engineVersion = engineVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Entry other = (Entry) o;
+            return sourceHash == other.sourceHash
+                    && paramsHash == other.paramsHash
+                    && paletteHash == other.paletteHash
+                    && engineVersion == other.engineVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(sourceHash * 31 + paramsHash) * 31 + Long.hashCode(paletteHash) + engineVersion;
+        }
+    }
+
+    private final PackOutput output;
+    private final Map<String, Entry> previous;
+    // Filled by the export threads as outputs are written or found up to date
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    private ExportManifest(PackOutput output, Map<String, Entry> previous) {
+        this.output = output;
+        this.previous = previous;
+    }
+
+    /**
+     * Reads the manifest of a previous export; a missing or unreadable one makes every output stale.
+     * The old manifest is then removed, so an export that stops before {@link #save()} leaves no
+     * record vouching for outputs it may already have overwritten in place.
+     */
+    public static ExportManifest load(PackOutput output) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        if (output.hasExisting(PATH)) {
+            try {
+                JsonObject root = GSON.fromJson(
+                        new String(output.readExisting(PATH), StandardCharsets.UTF_8), JsonObject.class);
+                if (root != null && root.has("format") && root.get("format").getAsInt() == FORMAT) {
+                    for (Map.Entry<String, JsonElement> file : root.getAsJsonObject("outputs").entrySet()) {
+                        JsonObject json = file.getValue().getAsJsonObject();
+                        entries.put(file.getKey(), new Entry(
+                                Long.parseUnsignedLong(json.get("source").getAsString(), 16),
+                                Long.parseUnsignedLong(json.get("params").getAsString(), 16),
+                                Long.parseUnsignedLong(json.get("palette").getAsString(), 16),
+                                json.get("engine").getAsInt()
+                        ));
+                    }
+                }
+            } catch (IOException | JsonParseException | IllegalStateException | NumberFormatException e) {
+                Repal.LOGGER.warn("Ignoring unreadable export manifest in {}", output, e);
+                entries.clear();
+            }
+            output.remove(PATH);
+        }
+        return new ExportManifest(output, entries);
+    }
+
+    /**
+     * Fingerprint of the layer settings that change an output, apart from the palette.
+     */
+    public static long paramsHash(ColorAdjustment adjustment, boolean indexedOutput) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ adjustment.getContrast()) * 0x100000001b3L;
+        hash = (hash ^ adjustment.getSaturation()) * 0x100000001b3L;
+        hash = (hash ^ adjustment.getHue()) * 0x100000001b3L;
+        hash = (hash ^ (indexedOutput ? 1 : 0)) * 0x100000001b3L;
+        return hash;
+    }
+
+    /**
+     * Returns true if the output was built from exactly this entry and is still there, and carries
+     * it over to the new export in that case.
+     */
+    public boolean keepIfCurrent(String path, Entry entry) throws IOException {
+        if (entry.equals(previous.get(path)) && output.hasExisting(path)) {
+            output.keep(path);
+            current.put(path, entry);
+            return true;
+        }
+        return false;
+    }
+
+    public void record(String path, Entry entry) {
+        current.put(path, entry);
+    }
+
+    /**
+     * Removes outputs of the previous export that are no longer produced; returns how many.
+     */
+    public int removeOrphans(Set<String> outputs) {
+        int removed = 0;
+        for (String path : previous.keySet()) {
+            if (!outputs.contains(path) && output.hasExisting(path)) {
+                try {
+                    output.remove(path);
+                    removed++;
+                } catch (IOException e) {
+                    Repal.LOGGER.warn("Failed to remove orphaned output {}", path, e);
+                }
+            }
+        }
+        return removed;
+    }
+
+    public void save() throws IOException {
+        JsonObject outputs = new JsonObject();
+        current.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(file -> {
+                    Entry entry = file.getValue();
+                    JsonObject json = new JsonObject();
+                    json.addProperty("source", Long.toHexString(entry.sourceHash));
+                    json.addProperty("params", Long.toHexString(entry.paramsHash));
+                    json.addProperty("palette", Long.toHexString(entry.paletteHash));
+                    json.addProperty("engine", entry.engineVersion);
+                    outputs.add(file.getKey(), json);
+                });
+        JsonObject root = new JsonObject();
+        root.addProperty("format", FORMAT);
+        root.add("outputs", outputs);
+
+        output.write(output.prepare(PATH, GSON.toJson(root).getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,251 @@
+package ninja.trek;
+
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.util.Identifier;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a resource pack export as four stages connected by bounded queues: decode, recolor and
+ * encode are CPU bound and get one thread per core each, writing is I/O bound and gets its own
+ * threads, as many as the output can take. Every texture reserves an estimate of its memory when it is decoded and gives it
+ * back once written, so a slow disk blocks decoding instead of filling the heap. Outputs the
+ * manifest shows as up to date are dropped right after their source is hashed.
+ */
+public class ExportPipeline {
+    private static final int CPU_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final int QUEUE_CAPACITY = CPU_THREADS * 2;
+    // In KiB; at most an eighth of the heap is held by textures in flight
+    private static final int BUDGET_KIB = (int) Math.max(1 << 10,
+            Math.min(256L << 10, (Runtime.getRuntime().maxMemory() >> 3) >> 10));
+
+    /**
+     * One output texture; the stages fill in and clear its fields as it moves along.
+     */
+    public static final class Task {
+        private final Identifier id;
+        private final String path;
+        private final LayerInfo layer;
+        private final PaletteLookupTable table;
+        private final long paramsHash;
+        private final long paletteHash;
+        private ExportManifest.Entry entry;
+        private IndexedTexture source;
+        private int[] pixels;
+        private int width;
+        private int height;
+        private PackOutput.Entry encoded;
+        private int reservedKib;
+
+        /**
+         * @param path output path relative to the pack root
+         */
+        public Task(Identifier id, String path, LayerInfo layer, PaletteLookupTable table,
+                    long paramsHash, long paletteHash) {
+            this.id = id;
+            this.path = path;
+            this.layer = layer;
+            this.table = table;
+            this.paramsHash = paramsHash;
+            this.paletteHash = paletteHash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+
+    private interface StageFunction {
+        // Returns false to drop the task instead of passing it to the next stage
+        boolean apply(Task task) throws Exception;
+    }
+
+    // Marks the end of the input; each stage passes it on once all of its threads are done
+    private static final Task END = new Task(null, null, null, null, 0, 0);
+
+    private final ResourceManager resourceManager;
+    private final PackOutput output;
+    private final ExportManifest manifest;
+    private final Semaphore budget = new Semaphore(BUDGET_KIB);
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<>();
+    private Thread coordinator;
+    // Set when a stage thread dies of an Error; the whole export is then torn down
+    private volatile Error fatal;
+
+    public ExportPipeline(ResourceManager resourceManager, PackOutput output, ExportManifest manifest) {
+        this.resourceManager = resourceManager;
+        this.output = output;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Exports every task and blocks until all of them are written; returns the number written.
+     * An Error in any stage stops every stage and is rethrown here.
+     */
+    public int run(List<Task> tasks) throws InterruptedException {
+        BlockingQueue<Task> decodeQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Task> processQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Task> encodeQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Task> writeQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        coordinator = Thread.currentThread();
+        // All threads exist before any starts, so a failing one can reach every other
+        addStage("Decode", CPU_THREADS, decodeQueue, processQueue, this::decode);
+        addStage("Process", CPU_THREADS, processQueue, encodeQueue, this::process);
+        addStage("Encode", CPU_THREADS, encodeQueue, writeQueue, this::encode);
+        addStage("Write", output.getWriterThreads(), writeQueue, null, this::write);
+        threads.forEach(Thread::start);
+
+        try {
+            for (Task task : tasks) {
+                decodeQueue.put(task);
+            }
+            decodeQueue.put(END);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            threads.forEach(Thread::interrupt);
+            if (fatal != null) {
+                throw fatal;
+            }
+            throw e;
+        }
+        if (fatal != null) {
+            Thread.interrupted();
+            throw fatal;
+        }
+
+        if (skipped.get() > 0) {
+            Repal.LOGGER.info("{} textures were already up to date", skipped.get());
+        }
+        if (failed.get() > 0) {
+            Repal.LOGGER.warn("{} textures failed to export", failed.get());
+        }
+        return written.get();
+    }
+
+    private void addStage(String name, int threadCount, BlockingQueue<Task> in, BlockingQueue<Task> out,
+                          StageFunction function) {
+        AtomicInteger running = new AtomicInteger(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Task task = in.take();
+                        if (task == END) {
+                            // Leave it for the other threads of this stage; the last one passes it on
+                            in.put(END);
+                            break;
+                        }
+                        try {
+                            if (function.apply(task) && out != null) {
+                                out.put(task);
+                            }
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            Repal.LOGGER.error("Failed to process texture {} in layer {}", task.id, task.layer.getName(), e);
+                            failed.incrementAndGet();
+                            budget.release(task.reservedKib);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Error e) {
+                    abort(e);
+                } finally {
+                    // Even a thread that died passes END on, so later stages never wait for it
+                    if (running.decrementAndGet() == 0 && out != null && fatal == null) {
+                        try {
+                            out.put(END);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, "Repal Export " + name + " " + (i + 1));
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+    }
+
+    // Stops every stage and wakes the coordinating thread, which rethrows the error
+    private synchronized void abort(Error error) {
+        if (fatal != null) {
+            return;
+        }
+        Repal.LOGGER.error("Export stage {} failed", Thread.currentThread().getName(), error);
+        fatal = error;
+        threads.forEach(Thread::interrupt);
+        coordinator.interrupt();
+    }
+
+    private boolean decode(Task task) throws Exception {
+        try {
+            task.entry = new ExportManifest.Entry(IndexedTextureCache.getSourceHash(resourceManager, task.id),
+                    task.paramsHash, task.paletteHash, ImageProcessor.ENGINE_VERSION);
+            if (manifest.keepIfCurrent(task.path, task.entry)) {
+                skipped.incrementAndGet();
+                return false;
+            }
+
+            task.source = IndexedTextureCache.get(resourceManager, task.id);
+            // Recolored pixels plus their encoded form; capped so one huge texture can't stall the pipeline
+            long bytes = 8L * task.source.getWidth() * task.source.getHeight();
+            task.reservedKib = (int) Math.min(BUDGET_KIB, Math.max(1, bytes >> 10));
+            budget.acquire(task.reservedKib);
+            return true;
+        } finally {
+            // A skipped texture leaves its file bytes behind
+            IndexedTextureCache.discardPending();
+        }
+    }
+
+    private boolean process(Task task) {
+        IndexedTexture source = task.source;
+        task.source = null;
+        task.pixels = task.table != null ? source.process(task.table) : source.toArgb();
+        task.width = source.getWidth();
+        task.height = source.getHeight();
+        return true;
+    }
+
+    private boolean encode(Task task) {
+        int[] pixels = task.pixels;
+        task.pixels = null;
+        int level = Repal.getPngCompressionLevel();
+        byte[] png = null;
+        if (Repal.isIndexedPngOutput()) {
+            // Recolored textures only use palette colors, so they nearly always fit a PLTE/tRNS PNG
+            png = PngEncoder.encode(IndexedTexture.of(pixels, task.width, task.height), level);
+        }
+        if (png == null) {
+            png = PngEncoder.encode(pixels, task.width, task.height, level);
+        }
+        // Compressing for a zip happens here too, so the single zip writer only appends
+        task.encoded = output.prepare(task.path, png);
+        return true;
+    }
+
+    private boolean write(Task task) throws IOException {
+        try {
+            output.write(task.encoded);
+            manifest.record(task.path, task.entry);
+            written.incrementAndGet();
+            return true;
+        } finally {
+            task.encoded = null;
+            budget.release(task.reservedKib);
+            task.reservedKib = 0;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ninja.trek;
+
+import net.minecraft.client.texture.NativeImage;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reusable RGBA NativeImage buffers keyed by size, so reprocessing a preview with new settings
+ * doesn't allocate and free native memory every time. Pooled images keep their old pixels;
+ * callers are expected to overwrite all of them.
+ */
+public class NativeImagePool {
+    private static final int MAX_PER_SIZE = 8;
+    private static final long MAX_POOLED_BYTES = 16L << 20;
+
+    private static final Map<Long, ArrayDeque<NativeImage>> pool = new HashMap<>();
+    private static long pooledBytes = 0;
+
+    public static NativeImage acquire(int width, int height) {
+        synchronized (pool) {
+            ArrayDeque<NativeImage> images = pool.get(key(width, height));
+            if (images != null && !images.isEmpty()) {
+                pooledBytes -= bytes(width, height);
+                return images.pop();
+            }
+        }
+        return new NativeImage(width, height, false);
+    }
+
+    /**
+     * Returns an image to the pool, or closes it if the pool is full for that size.
+     */
+    public static void release(NativeImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getFormat() == NativeImage.Format.RGBA) {
+            synchronized (pool) {
+                ArrayDeque<NativeImage> images = pool.computeIfAbsent(key(width, height), k -> new ArrayDeque<>());
+                if (images.size() < MAX_PER_SIZE && pooledBytes + bytes(width, height) <= MAX_POOLED_BYTES) {
+                    images.push(image);
+                    pooledBytes += bytes(width, height);
+                    return;
+                }
+            }
+        }
+        image.close();
+    }
+
+    public static void clear() {
+        synchronized (pool) {
+            pool.values().forEach(images -> images.forEach(NativeImage::close));
+            pool.clear();
+            pooledBytes = 0;
+        }
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xFFFFFFFFL);
+    }
+
+    private static long bytes(int width, int height) {
+        return 4L * width * height;
+    }
+}
@@ -0,0 +1,65 @@
+package ninja.trek;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where an export puts its files: a loose directory or a zip archive. Paths are relative to the
+ * pack root and use forward slashes. Entries are prepared on the export's worker threads and then
+ * written by at most {@link #getWriterThreads()} threads.
+ */
+public interface PackOutput extends Closeable {
+
+    /**
+     * A file ready to be written; compressed already if the output compresses.
+     */
+    final class Entry {
+        final String path;
+        final byte[] data;
+        final int size;
+        final long crc;
+        final boolean deflated;
+
+        Entry(String path, byte[] data, int size, long crc, boolean deflated) {
+            this.path = path;
+            this.data = data;
+            this.size = size;
+            this.crc = crc;
+            this.deflated = deflated;
+        }
+    }
+
+    /**
+     * Turns file contents into an entry; safe to call from any thread.
+     */
+    Entry prepare(String path, byte[] data);
+
+    void write(Entry entry) throws IOException;
+
+    /**
+     * Returns the contents of a file the previous export left behind, or null if there is none.
+     */
+    byte[] readExisting(String path) throws IOException;
+
+    /**
+     * Returns true if the previous export left this file behind.
+     */
+    boolean hasExisting(String path);
+
+    /**
+     * Carries a file of the previous export over unchanged.
+     */
+    void keep(String path) throws IOException;
+
+    /**
+     * Drops a file of the previous export that is no longer produced.
+     */
+    void remove(String path) throws IOException;
+
+    int getWriterThreads();
+
+    /**
+     * Completes the export; closing without finishing discards it where the output allows.
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,171 @@
+package ninja.trek;
+
+import com.mojang.blaze3d.platform.TextureUtil;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.texture.AbstractTexture;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.util.Identifier;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Shared GPU pages that processed previews are packed into, so the preview grid draws from a
+ * handful of textures instead of registering one per cell. Each page is split into equal cells
+ * of one power-of-two size class; images too large for a page get a page of their own.
+ * All methods must be called on the render thread.
+ */
+public class PreviewAtlas {
+    private static final int PAGE_SIZE = 512;
+    private static final int MIN_CELL_SIZE = 16;
+
+    private static final List<Page> pages = new ArrayList<>();
+    private static int nextPageId = 0;
+    // GPU memory held by all pages; a page stays allocated while any of its cells is in use
+    private static long allocatedBytes = 0;
+
+    /**
+     * A region of a page holding one preview image.
+     */
+    public static final class Slot {
+        private final Page page;
+        private final int cell;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+
+        private Slot(Page page, int cell, int width, int height) {
+            this.page = page;
+            this.cell = cell;
+            this.x = (cell % page.columns) * page.cellWidth;
+            this.y = (cell / page.columns) * page.cellHeight;
+            this.width = width;
+            this.height = height;
+        }
+
+        // Whether an image of this size can be uploaded over this slot
+        public boolean fits(NativeImage image) {
+            return image.getWidth() == width && image.getHeight() == height;
+        }
+
+        // Memory the slot occupies in its page
+        public long getBytes() {
+            return 4L * page.cellWidth * page.cellHeight;
+        }
+
+        /**
+         * Draws the whole preview image stretched to width x height.
+         */
+        public void draw(DrawContext context, int x, int y, int width, int height) {
+            context.drawTexture(page.id, x, y, width, height, this.x, this.y,
+                    this.width, this.height, page.width, page.height);
+        }
+    }
+
+    private static final class Page extends AbstractTexture {
+        private final Identifier id;
+        private final int width;
+        private final int height;
+        private final int cellWidth;
+        private final int cellHeight;
+        private final int columns;
+        private final int capacity;
+        private final BitSet used = new BitSet();
+        private int usedCount = 0;
+
+        private Page(int width, int height, int cellWidth, int cellHeight) {
+            this.id = Identifier.of(Repal.MOD_ID, "preview_atlas/" + nextPageId++);
+            this.width = width;
+            this.height = height;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+            this.columns = width / cellWidth;
+            this.capacity = columns * (height / cellHeight);
+            // Allocate storage only; cells are filled with sub-image uploads
+            TextureUtil.prepareImage(getGlId(), 0, width, height);
+        }
+
+        private long getBytes() {
+            return 4L * width * height;
+        }
+
+        @Override
+        public void load(ResourceManager manager) {
+        }
+    }
+
+    /**
+     * GPU memory of every allocated page, including the free cells of partly used pages.
+     */
+    public static long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Uploads the image into a free slot. The image is not closed.
+     */
+    public static Slot allocate(NativeImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int cellWidth = Math.max(MIN_CELL_SIZE, Integer.highestOneBit(width * 2 - 1));
+        int cellHeight = Math.max(MIN_CELL_SIZE, Integer.highestOneBit(height * 2 - 1));
+
+        Page page = null;
+        if (cellWidth > PAGE_SIZE || cellHeight > PAGE_SIZE) {
+            page = addPage(width, height, width, height);
+        } else {
+            for (Page candidate : pages) {
+                if (candidate.cellWidth == cellWidth && candidate.cellHeight == cellHeight
+                        && candidate.usedCount < candidate.capacity) {
+                    page = candidate;
+                    break;
+                }
+            }
+            if (page == null) {
+                page = addPage(PAGE_SIZE, PAGE_SIZE, cellWidth, cellHeight);
+            }
+        }
+
+        int cell = page.used.nextClearBit(0);
+        page.used.set(cell);
+        page.usedCount++;
+        Slot slot = new Slot(page, cell, width, height);
+        upload(slot, image);
+        return slot;
+    }
+
+    /**
+     * Overwrites a slot in place with an image of the same size (see {@link Slot#fits}).
+     */
+    public static void upload(Slot slot, NativeImage image) {
+        slot.page.bindTexture();
+        image.upload(0, slot.x, slot.y, 0, 0, slot.width, slot.height, false, false, false, false);
+    }
+
+    /**
+     * Returns the slot's cell to its page; a page is destroyed once its last slot is freed.
+     */
+    public static void free(Slot slot) {
+        Page page = slot.page;
+        if (!page.used.get(slot.cell)) {
+            return;
+        }
+        page.used.clear(slot.cell);
+        if (--page.usedCount == 0) {
+            pages.remove(page);
+            allocatedBytes -= page.getBytes();
+            MinecraftClient.getInstance().getTextureManager().destroyTexture(page.id);
+        }
+    }
+
+    private static Page addPage(int width, int height, int cellWidth, int cellHeight) {
+        Page page = new Page(width, height, cellWidth, cellHeight);
+        MinecraftClient.getInstance().getTextureManager().registerTexture(page.id, page);
+        pages.add(page);
+        allocatedBytes += page.getBytes();
+        return page;
+    }
+}
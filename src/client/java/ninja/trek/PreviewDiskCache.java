@@ -0,0 +1,243 @@
+package ninja.trek;
+
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.client.texture.NativeImage;
+import ninja.trek.mixin.client.NativeImageAccessor;
+import org.lwjgl.system.MemoryUtil;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Processed preview rasters persisted under the config directory, so the first preview screen of
+ * a session reads pixels back instead of recoloring every texture again. Files are addressed by a
+ * hash of the encoded source texture and the processing parameters, hold the raw RGBA pixels
+ * behind a small header, and the least recently used ones are deleted once the size cap is hit.
+ * Safe to use from several worker threads; I/O failures just count as misses.
+ */
+public class PreviewDiskCache {
+    private static final Path CACHE_DIR = FabricLoader.getInstance()
+            .getConfigDir()
+            .resolve("repal")
+            .resolve("preview_cache");
+    private static final int MAGIC = 0x52505631; // "RPV1"
+    private static final int HEADER_BYTES = 12;
+    // Temporary files this old were left behind by a write that never finished
+    private static final long STALE_TEMP_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // Total size of the cache files, counted on first use
+    private static final AtomicLong totalBytes = new AtomicLong(-1);
+    private static final Object evictionLock = new Object();
+
+    /**
+     * Returns the cache file name for a source texture processed with the given palette (null for
+     * none) and adjustment.
+     */
+    public static String key(long sourceHash, LabPalette palette, ColorAdjustment adjustment) {
+        long params = 0xcbf29ce484222325L;
+        params = mix(params, ImageProcessor.ENGINE_VERSION);
+        params = mix(params, palette != null ? palette.getFingerprint() : 0);
+        params = mix(params, palette != null ? 1 : 0);
+        params = mix(params, adjustment.getContrast());
+        params = mix(params, adjustment.getSaturation());
+        params = mix(params, adjustment.getHue());
+        return String.format("%016x%016x", sourceHash, params);
+    }
+
+    /**
+     * Reads a cached preview into a pooled NativeImage, or returns null on a miss.
+     */
+    public static NativeImage read(String key) {
+        if (Repal.getPreviewDiskCacheBudget() <= 0) {
+            return null;
+        }
+        Path path = pathFor(key);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                return null;
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            if (width <= 0 || height <= 0 || channel.size() != HEADER_BYTES + 4L * width * height) {
+                return null;
+            }
+
+            NativeImage image = NativeImagePool.acquire(width, height);
+            long pointer = ((NativeImageAccessor) (Object) image).getPointer();
+            try {
+                readFully(channel, MemoryUtil.memByteBuffer(pointer, 4 * width * height));
+            } catch (IOException e) {
+                NativeImagePool.release(image);
+                throw e;
+            }
+            // Keeps recently used files out of eviction
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return image;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Repal.LOGGER.debug("Failed to read cached preview {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a processed preview; the image is left untouched.
+     */
+    public static void write(String key, NativeImage image) {
+        long budget = Repal.getPreviewDiskCacheBudget();
+        if (budget <= 0) {
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Path path = pathFor(key);
+        if (Files.exists(path)) {
+            return;
+        }
+        try {
+            Files.createDirectories(path.getParent());
+            // Written under a unique name and moved into place, so readers never see partial files
+            Path temp = Files.createTempFile(path.getParent(), key, ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(MAGIC).putInt(width).putInt(height).flip();
+                    writeFully(channel, header);
+                    long pointer = ((NativeImageAccessor) (Object) image).getPointer();
+                    writeFully(channel, MemoryUtil.memByteBuffer(pointer, 4 * width * height));
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+            getTotalBytes(); // Counts the existing files the first time
+            if (totalBytes.addAndGet(HEADER_BYTES + 4L * width * height) > budget) {
+                evict(budget);
+            }
+        } catch (IOException e) {
+            Repal.LOGGER.debug("Failed to write cached preview {}", key, e);
+        }
+    }
+
+    private static class CachedFile {
+        private final Path path;
+        private final long size;
+        private final FileTime lastUsed;
+
+        CachedFile(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.size = attributes.size();
+            this.lastUsed = attributes.lastModifiedTime();
+        }
+    }
+
+    // Deletes the least recently used files until the cache is a quarter under budget
+    private static void evict(long budget) {
+        synchronized (evictionLock) {
+            List<CachedFile> files = new ArrayList<>();
+            long total = 0;
+            try (Stream<Path> stream = Files.walk(CACHE_DIR)) {
+                for (Path path : (Iterable<Path>) stream::iterator) {
+                    if (isCacheFile(path)) {
+                        CachedFile file = new CachedFile(path, Files.readAttributes(path, BasicFileAttributes.class));
+                        files.add(file);
+                        total += file.size;
+                    }
+                }
+            } catch (IOException | UncheckedIOException e) {
+                Repal.LOGGER.debug("Failed to scan preview cache", e);
+                return;
+            }
+            files.sort(Comparator.comparing(file -> file.lastUsed));
+
+            long target = budget - budget / 4;
+            for (CachedFile file : files) {
+                if (total <= target) {
+                    break;
+                }
+                try {
+                    Files.deleteIfExists(file.path);
+                    total -= file.size;
+                } catch (IOException e) {
+                    Repal.LOGGER.debug("Failed to delete cached preview {}", file.path, e);
+                }
+            }
+            totalBytes.set(total);
+        }
+    }
+
+    // Counted once per session; the first scan also deletes temporary files a crashed session left behind
+    private static long getTotalBytes() {
+        long total = totalBytes.get();
+        if (total >= 0) {
+            return total;
+        }
+        synchronized (evictionLock) {
+            if (totalBytes.get() < 0) {
+                long sum = 0;
+                long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+                try (Stream<Path> stream = Files.walk(CACHE_DIR)) {
+                    for (Path path : (Iterable<Path>) stream::iterator) {
+                        if (isCacheFile(path)) {
+                            sum += Files.size(path);
+                        } else if (path.getFileName().toString().endsWith(".tmp")
+                                && Files.getLastModifiedTime(path).toMillis() < staleBefore) {
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    Repal.LOGGER.debug("Failed to scan preview cache", e);
+                }
+                totalBytes.set(sum);
+            }
+            return totalBytes.get();
+        }
+    }
+
+    // Finished cache files only; directories and temporary files in progress are not counted
+    private static boolean isCacheFile(Path path) {
+        return path.getFileName().toString().endsWith(".bin");
+    }
+
+    // Spread over 256 subdirectories to keep directory listings short
+    private static Path pathFor(String key) {
+        return CACHE_DIR.resolve(key.substring(0, 2)).resolve(key + ".bin");
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of cached preview");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -2,34 +2,37 @@ package ninja.trek;
 
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.texture.NativeImage;
-import net.minecraft.client.texture.NativeImageBackedTexture;
+import net.minecraft.resource.ResourceManager;
 import net.minecraft.util.Identifier;
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.InputStream;
+import ninja.trek.mixin.client.NativeImageAccessor;
+import org.lwjgl.system.MemoryUtil;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class ProcessedTextureCache {
+    // One entry per texture and layer; the layer's settings live in the entry so a change replaces it in place
     private static class CacheKey {
         private final Identifier textureId;
         private final UUID layerId;
-        private final int contrast;
-        private final int saturation;
-        private final int hue;  // Added hue to cache key
-        private final String palette;
 
-        public CacheKey(Identifier textureId, LayerInfo layer) {
+        public CacheKey(Identifier textureId, UUID layerId) {
             this.textureId = textureId;
-            this.layerId = layer.getId();
-            this.contrast = layer.getContrast();
-            this.saturation = layer.getSaturation();
-            this.hue = layer.getHue();  // Include hue in cache key
-            this.palette = layer.getPalette();
+            this.layerId = layerId;
         }
 
         @Override
@@ -38,115 +41,553 @@ public class ProcessedTextureCache {
             if (o == null || getClass() != o.getClass()) return false;
             CacheKey cacheKey = (CacheKey) o;
             return textureId.equals(cacheKey.textureId) &&
-                    layerId.equals(cacheKey.layerId) &&
-                    contrast == cacheKey.contrast &&
-                    saturation == cacheKey.saturation &&
-                    hue == cacheKey.hue &&  // Include hue in equals
-                    Objects.equals(palette, cacheKey.palette);
+                    layerId.equals(cacheKey.layerId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(textureId, layerId);
+        }
+    }
+
+    // What a preview is processed with: palette contents and adjustment. Interned, so layers with
+    // identical settings share one instance and result keys can compare it by identity
+    private static final class Params {
+        private final boolean hasPalette;
+        private final long paletteFingerprint;
+        private final ColorAdjustment adjustment;
+        // Render thread only: results made with these settings; dropped from the interner at zero
+        int resultCount;
+
+        Params(LabPalette palette, ColorAdjustment adjustment) {
+            this.hasPalette = palette != null;
+            this.paletteFingerprint = palette != null ? palette.getFingerprint() : 0;
+            this.adjustment = adjustment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Params other = (Params) o;
+            return hasPalette == other.hasPalette &&
+                    paletteFingerprint == other.paletteFingerprint &&
+                    adjustment.equals(other.adjustment);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hasPalette, paletteFingerprint, adjustment);
+        }
+    }
+
+    private static class ResultKey {
+        private final Identifier textureId;
+        private final Params params;
+
+        ResultKey(Identifier textureId, Params params) {
+            this.textureId = textureId;
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ResultKey other = (ResultKey) o;
+            return params == other.params && textureId.equals(other.textureId);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(textureId, layerId, contrast, saturation, hue, palette);  // Include hue in hash
+            return 31 * textureId.hashCode() + System.identityHashCode(params);
+        }
+    }
+
+    // One processed preview, shared by every layer that maps the texture the same way
+    private static class Result {
+        final ResultKey key;
+        final LabPalette palette;
+        // Completes with the preview's atlas slot, or null if processing failed
+        final CompletableFuture<PreviewAtlas.Slot> future = new CompletableFuture<>();
+        // Render thread only: entries (current or previous) holding this result, and its atlas memory
+        int refCount;
+        long bytes;
+        // Set when a newer result took over this one's atlas slot
+        boolean slotTakenOver;
+        // Entries waiting for this result that still show an older one
+        final List<Entry> waiting = new ArrayList<>();
+        // Scheduling state: the best priority queued so far, whether a worker has picked it up,
+        // and the last frame it was asked for
+        volatile int queuedPriority = Integer.MAX_VALUE;
+        final AtomicBoolean started = new AtomicBoolean();
+        volatile long requestedFrame;
+        // Disk cache file for a freshly processed preview, and its pixels kept until they are written
+        // there (see persistIfSettled); render thread only apart from the worker setting the key
+        volatile String diskKey;
+        NativeImage pendingWrite;
+        long uploadedAt;
+        // Render thread only: the last frame it was drawn in (prefetching doesn't count)
+        long drawnFrame = -1;
+
+        Result(ResultKey key, LabPalette palette) {
+            this.key = key;
+            this.palette = palette;
+        }
+    }
+
+    private static class Entry {
+        final CacheKey key;
+        final int generation;
+        final ColorAdjustment adjustment;
+        final String palette;
+        final Result result;
+        // Last finished result for older settings, drawn until this one is ready
+        Result previous;
+        // When it was last drawn (prefetching doesn't count), and the last frame it was asked for at all
+        long lastUsed;
+        long requestedFrame;
+
+        Entry(CacheKey key, int generation, LayerInfo layer, Result result) {
+            this.key = key;
+            this.generation = generation;
+            this.adjustment = ColorAdjustment.of(layer);
+            this.palette = layer.getPalette();
+            this.result = result;
+        }
+
+        boolean isCurrent(int generation, LayerInfo layer) {
+            return this.generation == generation &&
+                    adjustment.equals(ColorAdjustment.of(layer)) &&
+                    Objects.equals(palette, layer.getPalette());
+        }
+    }
+
+    // All of these are only modified on the render thread; workers just look results up
+    private static final ConcurrentHashMap<CacheKey, Entry> processedTextureIds = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<ResultKey, Result> results = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Params, Params> internedParams = new ConcurrentHashMap<>();
+    // Bumped on every visible lookup, so lastUsed orders entries by when they were last drawn
+    private static long useClock = 0;
+    // Memory held by pendingWrite images; counted against the preview budget next to the atlas
+    private static long pendingWriteBytes = 0;
+    // Bumped whenever a layer's settings change; work queued for an older generation is skipped
+    private static final ConcurrentHashMap<UUID, AtomicInteger> layerGenerations = new ConcurrentHashMap<>();
+
+    // Work queue order: what is on screen, then the page below, then the page above
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_NEXT_PAGE = 1;
+    public static final int PRIORITY_PREVIOUS_PAGE = 2;
+    // Disk cache writes go behind all preview work
+    private static final int PRIORITY_PERSIST = 3;
+
+    // How long a preview has to stay on screen before it is worth keeping on disk; anything replaced
+    // sooner was an intermediate slider value
+    private static final long PERSIST_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    // Advanced once per drawn grid frame; queued work not asked for in the last two frames is dropped
+    private static final AtomicLong frameClock = new AtomicLong();
+    private static final AtomicLong jobSequence = new AtomicLong();
+
+    private static class Job implements Runnable, Comparable<Job> {
+        private final int priority;
+        private final long sequence = jobSequence.incrementAndGet();
+        private final Runnable task;
+
+        Job(int priority, Runnable task) {
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int cmp = Integer.compare(priority, other.priority);
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
         }
     }
 
-    private static final ConcurrentHashMap<CacheKey, Identifier> processedTextureIds = new ConcurrentHashMap<>();
-    private static final int MAX_CACHE_SIZE = 100; // Increased due to multiple layers
+    // Decoding and recoloring run here so the render thread never waits on them
+    private static final AtomicInteger workerCount = new AtomicInteger();
+    private static final int WORKER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final ExecutorService WORKERS = new ThreadPoolExecutor(
+            WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "Repal Preview Worker " + workerCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            });
 
-    private static void processTexture(Identifier originalId, Identifier processedId, LayerInfo layer) {
+    private static NativeImage processTexture(Result result) throws Exception {
         MinecraftClient client = MinecraftClient.getInstance();
+        ResourceManager resourceManager = client.getResourceManager();
+        Identifier originalId = result.key.textureId;
+        LabPalette palette = result.palette;
+        ColorAdjustment adjustment = result.key.params.adjustment;
+
+        // A texture that is already decoded is remapped faster than its preview is read back, so
+        // the disk only helps with textures not decoded yet, typically made in an earlier session
+        IndexedTexture source = IndexedTextureCache.getIfPresent(resourceManager, originalId);
+        String diskKey = null;
         try {
-            var resource = client.getResourceManager()
-                    .getResource(originalId)
-                    .orElseThrow();
-
-            try (InputStream stream = resource.getInputStream()) {
-                BufferedImage originalImage = ImageIO.read(stream);
-                if (originalImage == null) {
-                    throw new IllegalStateException("Failed to read image: " + originalId);
+            if (Repal.getPreviewDiskCacheBudget() > 0) {
+                diskKey = PreviewDiskCache.key(
+                        IndexedTextureCache.getSourceHash(resourceManager, originalId), palette, adjustment);
+                if (source == null) {
+                    NativeImage cached = PreviewDiskCache.read(diskKey);
+                    if (cached != null) {
+                        return cached;
+                    }
                 }
+            }
 
-                List<Color> layerPalette = RepalResourceReloadListener.getLayerPaletteColors(layer);
-                BufferedImage processedImage = ImageProcessor.processImage(
-                        originalImage,
-                        layerPalette,
-                        layer.getContrast(),
-                        layer.getSaturation(),
-                        layer.getHue()  // Added hue parameter
-                );
-
-                // Convert to NativeImage
-                NativeImage nativeImage = new NativeImage(
-                        processedImage.getWidth(),
-                        processedImage.getHeight(),
-                        false
-                );
-
-                // Copy processed image data to NativeImage
-                for (int y = 0; y < processedImage.getHeight(); y++) {
-                    for (int x = 0; x < processedImage.getWidth(); x++) {
-                        int argb = processedImage.getRGB(x, y);
-                        int a = (argb >> 24) & 0xFF;
-                        int r = (argb >> 16) & 0xFF;
-                        int g = (argb >> 8) & 0xFF;
-                        int b = argb & 0xFF;
-                        int abgr = (a << 24) | (b << 16) | (g << 8) | r;
-                        nativeImage.setColor(x, y, abgr);
-                    }
+            // Decoded once per texture; palette and slider changes only remap its colors
+            if (source == null) {
+                source = IndexedTextureCache.get(resourceManager, originalId);
+            }
+        } finally {
+            // Hashing keeps the file bytes for a decode that a disk hit or cached source never does
+            IndexedTextureCache.discardPending();
+        }
+        int[] colors = source.mapColors(palette == null ? null : PaletteLookupTable.get(palette, adjustment));
+
+        // NativeImage stores RGBA bytes, i.e. little-endian ABGR ints; swizzle the color table once
+        // and expand the index plane straight into the image's native buffer
+        for (int i = 0; i < colors.length; i++) {
+            int argb = colors[i];
+            colors[i] = (argb & 0xFF00FF00) | ((argb >> 16) & 0xFF) | ((argb & 0xFF) << 16);
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        NativeImage nativeImage = NativeImagePool.acquire(width, height);
+        long pointer = ((NativeImageAccessor) (Object) nativeImage).getPointer();
+        source.expand(colors, MemoryUtil.memIntBuffer(pointer, width * height));
+        // Written to disk later, and only if it is still drawn once the settings have settled
+        result.diskKey = diskKey;
+        return nativeImage;
+    }
+
+    // Queues the result at the given priority; a result can be queued again at a better priority, and
+    // whichever of its jobs a worker picks up first does the work
+    private static void submit(Result result, int priority) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        result.queuedPriority = priority;
+        WORKERS.execute(new Job(priority, () -> {
+            if (!result.started.compareAndSet(false, true)) {
+                return;
+            }
+            // No layer shows this result anymore
+            if (results.get(result.key) != result) {
+                return;
+            }
+            // Scrolled out of view (and out of the prefetch range) while queued; requeued if it comes back
+            if (frameClock.get() - result.requestedFrame > 1) {
+                result.queuedPriority = Integer.MAX_VALUE;
+                result.started.set(false);
+                return;
+            }
+
+            NativeImage nativeImage;
+            try {
+                nativeImage = processTexture(result);
+            } catch (Exception e) {
+                Repal.LOGGER.error("Failed to process texture: " + result.key.textureId, e);
+                result.future.complete(null);
+                return;
+            }
+
+            // Upload into the atlas, unless every layer moved on while we were working
+            client.execute(() -> upload(client, result, nativeImage));
+        }));
+    }
+
+    // Render thread only
+    private static void upload(MinecraftClient client, Result result, NativeImage nativeImage) {
+        if (results.get(result.key) != result) {
+            NativeImagePool.release(nativeImage);
+            result.future.complete(null);
+            return;
+        }
+
+        // Waiting entries let go of what they showed meanwhile; a same-sized slot nobody else
+        // shows is overwritten in place and taken over
+        PreviewAtlas.Slot slot = null;
+        for (Entry waiter : result.waiting) {
+            Result previous = waiter.previous;
+            if (previous == null || processedTextureIds.get(waiter.key) != waiter) {
+                continue;
+            }
+            waiter.previous = null;
+            PreviewAtlas.Slot previousSlot = previous.future.getNow(null);
+            if (slot == null && previous.refCount == 1 && previousSlot != null && previousSlot.fits(nativeImage)) {
+                PreviewAtlas.upload(previousSlot, nativeImage);
+                slot = previousSlot;
+                result.bytes = previous.bytes;
+                previous.bytes = 0;
+                previous.slotTakenOver = true;
+            }
+            release(previous);
+        }
+        result.waiting.clear();
+
+        if (slot == null) {
+            slot = PreviewAtlas.allocate(nativeImage);
+            result.bytes = slot.getBytes();
+        }
+        if (result.diskKey != null) {
+            result.pendingWrite = nativeImage;
+            result.uploadedAt = System.nanoTime();
+            pendingWriteBytes += imageBytes(nativeImage);
+        } else {
+            NativeImagePool.release(nativeImage);
+        }
+        result.future.complete(slot);
+        evictIfNeeded(result);
+    }
+
+    private static int getGeneration(UUID layerId) {
+        AtomicInteger generation = layerGenerations.get(layerId);
+        return generation != null ? generation.get() : 0;
+    }
+
+    /**
+     * Marks the layer's previews as out of date. Queued and running work for it is dropped, and each
+     * preview keeps showing its last result until the new one is uploaded, so dragging a slider only
+     * ever processes the values that are actually drawn.
+     */
+    public static void invalidateLayer(UUID layerId) {
+        layerGenerations.computeIfAbsent(layerId, id -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Starts a new grid frame. Queued work for previews that were not requested during this frame
+     * or the previous one is cancelled when a worker reaches it.
+     */
+    public static void beginFrame() {
+        frameClock.incrementAndGet();
+    }
+
+    /**
+     * Cancels all queued preview work, for when the grid stops being drawn. The clock only moves while
+     * the grid renders, so without this, queued jobs would still run after the screen closes.
+     */
+    public static void cancelQueued() {
+        frameClock.addAndGet(2);
+        // Nothing is drawn anymore, so no waiting preview will settle; render thread only
+        for (Result result : results.values()) {
+            dropPendingWrite(result);
+        }
+    }
+
+    /**
+     * Returns the processed preview's atlas slot, or null while it is still being processed (or if it failed).
+     * Misses are queued to the worker pool; callers should draw a placeholder and ask again next frame.
+     * While an out of date preview is being redone, its previous result is returned instead.
+     * Layers with identical palette and adjustment share one result. Render thread only.
+     */
+    public static PreviewAtlas.Slot getProcessedTexture(Identifier originalTexture, LayerInfo layer) {
+        return request(originalTexture, layer, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Queues a preview that is about to come into view, behind everything that is visible.
+     */
+    public static void prefetch(Identifier originalTexture, LayerInfo layer, int priority) {
+        request(originalTexture, layer, priority);
+    }
+
+    private static PreviewAtlas.Slot request(Identifier originalTexture, LayerInfo layer, int priority) {
+        CacheKey key = new CacheKey(originalTexture, layer.getId());
+        int generation = getGeneration(key.layerId);
+        Entry entry = processedTextureIds.get(key);
+        if (entry == null || !entry.isCurrent(generation, layer)) {
+            Entry fresh = new Entry(key, generation, layer, acquire(originalTexture, layer));
+            if (entry != null) {
+                // Hand over whatever is on screen so there is no placeholder flash while we wait
+                Result shown = entry.result.future.getNow(null) != null ? entry.result : entry.previous;
+                Result dropped = shown == entry.result ? entry.previous : entry.result;
+                if (shown == fresh.result) {
+                    release(shown);
+                    shown = null;
+                }
+                fresh.previous = shown;
+                if (dropped != null) {
+                    release(dropped);
                 }
+            }
+            if (fresh.previous != null && !fresh.result.future.isDone()) {
+                fresh.result.waiting.add(fresh);
+            } else if (fresh.previous != null) {
+                release(fresh.previous);
+                fresh.previous = null;
+            }
+            processedTextureIds.put(key, fresh);
+            entry = fresh;
+        }
 
-                // Register the texture
-                client.execute(() -> {
-                    NativeImageBackedTexture texture = new NativeImageBackedTexture(nativeImage);
-                    client.getTextureManager().registerTexture(processedId, texture);
-                });
-            }
-        } catch (Exception e) {
-            Repal.LOGGER.error("Failed to process texture: " + originalId + " for layer: " + layer.getName(), e);
-        }
-    }
-
-    public static Identifier getProcessedTexture(Identifier originalTexture, LayerInfo layer) {
-        CacheKey key = new CacheKey(originalTexture, layer);
-        return processedTextureIds.computeIfAbsent(key, k -> {
-            Identifier processedId = Identifier.of(Repal.MOD_ID,
-                    "processed/" + layer.getId() + "/" +
-                            originalTexture.getPath().replace('/', '_') +
-                            "_" + layer.getPalette() +
-                            "_" + layer.getContrast() +
-                            "_" + layer.getSaturation() +
-                            "_" + layer.getHue());  // Added hue to processed texture identifier
-            processTexture(originalTexture, processedId, layer);
-            return processedId;
-        });
+        Result result = entry.result;
+        if (priority == PRIORITY_VISIBLE) {
+            entry.lastUsed = ++useClock;
+            result.drawnFrame = frameClock.get();
+        }
+        entry.requestedFrame = frameClock.get();
+        result.requestedFrame = entry.requestedFrame;
+        if (!result.future.isDone() && priority < result.queuedPriority && !result.started.get()) {
+            // New, dropped after scrolling away, or a prefetched preview that scrolled into view
+            submit(result, priority);
+        }
+
+        PreviewAtlas.Slot slot = result.future.getNow(null);
+        if (slot != null && priority == PRIORITY_VISIBLE) {
+            persistIfSettled(result);
+        }
+        if (slot == null && entry.previous != null) {
+            slot = entry.previous.future.getNow(null);
+        }
+        return slot;
     }
 
+    // Hands a drawn preview's pixels to a worker to write to the disk cache, once it has been shown long enough
+    private static void persistIfSettled(Result result) {
+        NativeImage image = result.pendingWrite;
+        if (image == null || System.nanoTime() - result.uploadedAt < PERSIST_DELAY_NANOS) {
+            return;
+        }
+        result.pendingWrite = null;
+        pendingWriteBytes -= imageBytes(image);
+        String diskKey = result.diskKey;
+        WORKERS.execute(new Job(PRIORITY_PERSIST, () -> {
+            try {
+                PreviewDiskCache.write(diskKey, image);
+            } finally {
+                NativeImagePool.release(image);
+            }
+        }));
+    }
 
-    private static void cleanCacheIfNeeded() {
-        if (processedTextureIds.size() > MAX_CACHE_SIZE) {
-            MinecraftClient client = MinecraftClient.getInstance();
-            processedTextureIds.forEach((key, processedId) -> {
-                client.getTextureManager().destroyTexture(processedId);
-            });
-            processedTextureIds.clear();
+    // Returns the shared result for the layer's settings, adding a reference to it
+    private static Result acquire(Identifier textureId, LayerInfo layer) {
+        LabPalette palette = RepalResourceReloadListener.getLayerLabPalette(layer);
+        Params params = internedParams.computeIfAbsent(new Params(palette, ColorAdjustment.of(layer)), p -> p);
+        ResultKey key = new ResultKey(textureId, params);
+        Result result = results.get(key);
+        if (result == null) {
+            result = new Result(key, palette);
+            results.put(key, result);
+            params.resultCount++;
+        }
+        result.refCount++;
+        return result;
+    }
+
+    // Drops a reference; the last one frees the atlas slot, and pending work is dropped when a worker reaches it
+    private static void release(Result result) {
+        if (--result.refCount > 0) {
+            return;
+        }
+        Params params = result.key.params;
+        if (results.remove(result.key, result) && --params.resultCount == 0) {
+            internedParams.remove(params, params);
+        }
+        PreviewAtlas.Slot slot = result.future.getNow(null);
+        if (slot != null && !result.slotTakenOver) {
+            PreviewAtlas.free(slot);
+        }
+        result.bytes = 0;
+        dropPendingWrite(result);
+    }
+
+    // Gives up on writing the result to the disk cache and frees its pixels
+    private static void dropPendingWrite(Result result) {
+        if (result.pendingWrite != null) {
+            pendingWriteBytes -= imageBytes(result.pendingWrite);
+            NativeImagePool.release(result.pendingWrite);
+            result.pendingWrite = null;
         }
     }
 
+    private static long imageBytes(NativeImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    private static void destroy(Entry entry) {
+        release(entry.result);
+        if (entry.previous != null) {
+            release(entry.previous);
+            entry.previous = null;
+        }
+    }
+
+    // Render thread only. Once the atlas pages are over budget, drops least recently drawn previews until
+    // a little under it, so a full cache doesn't sort on every upload. Pages are what the GPU holds, so
+    // the budget is measured in pages: a page only goes away once its last cell is freed. Anything asked
+    // for this frame stays, even if that leaves the cache over budget until the view moves. Pixels waiting
+    // for a disk write count too, and go first unless their preview was drawn this frame
+    private static void evictIfNeeded(Result keep) {
+        long budget = Repal.getPreviewCacheBudget();
+        if (PreviewAtlas.getAllocatedBytes() + pendingWriteBytes <= budget) {
+            return;
+        }
+
+        long frame = frameClock.get();
+        for (Result result : results.values()) {
+            if (result.pendingWrite != null && result.drawnFrame != frame) {
+                dropPendingWrite(result);
+            }
+        }
+        if (PreviewAtlas.getAllocatedBytes() + pendingWriteBytes <= budget) {
+            return;
+        }
+
+        List<Entry> resident = new ArrayList<>();
+        // How many references to each result the candidates hold; a result also held by an entry
+        // that stays is never freed, so evicting an entry that only holds such results gains nothing
+        Map<Result, Integer> held = new IdentityHashMap<>();
+        for (Entry entry : processedTextureIds.values()) {
+            if (entry.result != keep && entry.requestedFrame != frame
+                    && (entry.result.bytes > 0 || entry.previous != null)) {
+                resident.add(entry);
+                held.merge(entry.result, 1, Integer::sum);
+                if (entry.previous != null) {
+                    held.merge(entry.previous, 1, Integer::sum);
+                }
+            }
+        }
+        resident.removeIf(entry -> !canFree(entry.result, held) && !canFree(entry.previous, held));
+        resident.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+
+        long target = budget - budget / 8;
+        for (Entry entry : resident) {
+            if (PreviewAtlas.getAllocatedBytes() + pendingWriteBytes <= target) {
+                break;
+            }
+            if (processedTextureIds.remove(entry.key, entry)) {
+                destroy(entry);
+            }
+        }
+    }
+
+    private static boolean canFree(Result result, Map<Result, Integer> held) {
+        return result != null && result.bytes > 0 && held.get(result) == result.refCount;
+    }
+
+    private static void clearAll() {
+        processedTextureIds.values().forEach(ProcessedTextureCache::destroy);
+        processedTextureIds.clear();
+        results.clear();
+        internedParams.clear();
+    }
+
     public static void clearCache() {
         MinecraftClient client = MinecraftClient.getInstance();
         if (client.isOnThread()) {
-            processedTextureIds.forEach((key, processedId) -> {
-                client.getTextureManager().destroyTexture(processedId);
-            });
-            processedTextureIds.clear();
+            clearAll();
         } else {
-            client.execute(() -> {
-                processedTextureIds.forEach((key, processedId) -> {
-                    client.getTextureManager().destroyTexture(processedId);
-                });
-                processedTextureIds.clear();
-            });
+            client.execute(ProcessedTextureCache::clearAll);
         }
     }
 
@@ -155,9 +596,9 @@ public class ProcessedTextureCache {
         MinecraftClient client = MinecraftClient.getInstance();
         // Use client.execute to ensure we're on the main thread
         client.execute(() -> {
-            processedTextureIds.entrySet().removeIf(entry -> {
-                if (entry.getKey().textureId.equals(textureId)) {
-                    client.getTextureManager().destroyTexture(entry.getValue());
+            processedTextureIds.values().removeIf(entry -> {
+                if (entry.key.textureId.equals(textureId)) {
+                    destroy(entry);
                     return true;
                 }
                 return false;
@@ -167,13 +608,12 @@ public class ProcessedTextureCache {
 
 
     public static void clearLayerCache(UUID layerId) {
-        MinecraftClient client = MinecraftClient.getInstance();
-        processedTextureIds.entrySet().removeIf(entry -> {
-            if (entry.getKey().layerId.equals(layerId)) {
-                client.getTextureManager().destroyTexture(entry.getValue());
+        processedTextureIds.values().removeIf(entry -> {
+            if (entry.key.layerId.equals(layerId)) {
+                destroy(entry);
                 return true;
             }
             return false;
         });
     }
-}
\ No newline at end of file
+}
@@ -2,9 +2,13 @@ package ninja.trek;
 
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
+import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
+import net.fabricmc.fabric.api.resource.SimpleSynchronousResourceReloadListener;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.texture.NativeImage;
 import net.minecraft.client.texture.NativeImageBackedTexture;
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.resource.ResourceType;
 import net.minecraft.util.Identifier;
 import ninja.trek.Repal;
 
@@ -27,7 +31,22 @@ public class RepalClient implements ClientModInitializer {
 				previewTexture.close();
 				previewTexture = null;
 			}
+			NativeImagePool.clear();
 		});
+
+		// Previews were made from the old textures and palettes
+		ResourceManagerHelper.get(ResourceType.CLIENT_RESOURCES)
+				.registerReloadListener(new SimpleSynchronousResourceReloadListener() {
+					@Override
+					public Identifier getFabricId() {
+						return Identifier.of(Repal.MOD_ID, "preview_cache");
+					}
+
+					@Override
+					public void reload(ResourceManager manager) {
+						ProcessedTextureCache.clearCache();
+					}
+				});
 	}
 
 	private void initializePreviewTexture(MinecraftClient client) {
@@ -75,30 +94,4 @@ public class RepalClient implements ClientModInitializer {
 	private static void setColorArgb(NativeImage image, int x, int y, int color) {
 		image.setColor(x, y, color);
 	}
-
-	public static void updatePreviewTexture(NativeImage newImage) {
-		MinecraftClient client = MinecraftClient.getInstance();
-
-		// Ensure we're on the main thread
-		if (!client.isOnThread()) {
-			client.execute(() -> updatePreviewTexture(newImage));
-			return;
-		}
-
-		try {
-			// Clean up old texture if it exists
-			if (previewTexture != null) {
-				previewTexture.close();
-				client.getTextureManager().destroyTexture(PREVIEW_TEXTURE_ID);
-			}
-
-			// Create and register new texture
-			previewTexture = new NativeImageBackedTexture(newImage);
-			client.getTextureManager().registerTexture(PREVIEW_TEXTURE_ID, previewTexture);
-
-		} catch (Exception e) {
-			Repal.LOGGER.error("Failed to update preview texture", e);
-			e.printStackTrace();
-		}
-	}
 }
\ No newline at end of file
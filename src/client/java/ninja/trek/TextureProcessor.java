@@ -1,16 +1,16 @@
 package ninja.trek;
 
 import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.toast.SystemToast;
 import net.minecraft.resource.ResourceManager;
+import net.minecraft.text.Text;
 import net.minecraft.util.Identifier;
 import net.fabricmc.loader.api.FabricLoader;
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -27,56 +27,118 @@ public class TextureProcessor {
             "_leaves", "_door_top", "_door_bottom"
     };
 
+    // Set while an export is running, so the Process button can't start a second one
+    private static final AtomicBoolean exporting = new AtomicBoolean(false);
+
+    public static boolean isExporting() {
+        return exporting.get();
+    }
+
+    /**
+     * Plans the export on the calling thread, where layers and palettes are safe to read, then
+     * decodes, recolors, encodes and writes the textures on a background thread.
+     */
     public static void processAllTextures() {
+        if (!exporting.compareAndSet(false, true)) {
+            Repal.LOGGER.info("Resource pack generation already running");
+            return;
+        }
+        boolean started = false;
         try {
             ResourceManager resourceManager = MinecraftClient.getInstance().getResourceManager();
-            Path outputDir = FabricLoader.getInstance().getGameDir()
-                    .resolve("resourcepacks")
-                    .resolve(Repal.getPackName());
-
-            // Create resource pack directory structure
-            Files.createDirectories(outputDir.resolve("assets/minecraft/textures/block"));
+            Path packsDir = FabricLoader.getInstance().getGameDir().resolve("resourcepacks");
+            String packName = Repal.getPackName();
+            boolean zip = Repal.isZipPackOutput();
+            boolean store = Repal.isZipStoreEntries();
 
             // Create pack.mcmeta
-            createPackMcmeta(outputDir);
+            byte[] packMcmeta = createPackMcmeta();
 
             // Process textures by layer
             LayerManager layerManager = LayerManager.getInstance();
             List<LayerInfo> layers = layerManager.getAllLayers();
 
             // Save layer configuration for reference
-            saveLayerConfig(outputDir, layers);
+            byte[] layerConfig = createLayerConfig(layers);
 
-            // Process each layer
+            // Queue each layer's textures, by output path: a texture in several layers is
+            // written once, with the settings of the last layer that has it
+            Map<String, ExportPipeline.Task> planned = new LinkedHashMap<>();
             for (LayerInfo layer : layers) {
-                processLayer(layer, resourceManager, outputDir);
+                processLayer(layer, planned);
             }
 
             // Process unassigned textures with default settings
-            processUnassignedTextures(resourceManager, outputDir);
+            processUnassignedTextures(planned);
+            List<ExportPipeline.Task> tasks = new ArrayList<>(planned.values());
 
-            Repal.LOGGER.info("Resource pack generation complete: {}", outputDir);
+            Thread thread = new Thread(() -> {
+                try (PackOutput output = zip
+                        ? ZipPackOutput.open(packsDir.resolve(packName + ".zip"), store)
+                        : new DirectoryPackOutput(packsDir.resolve(packName))) {
+                    runExport(resourceManager, output, tasks, packMcmeta, layerConfig);
+                } catch (Exception e) {
+                    Repal.LOGGER.error("Failed to process textures", e);
+                    showFailure(e);
+                } finally {
+                    exporting.set(false);
+                }
+            }, "Repal Export");
+            thread.setDaemon(true);
+            thread.start();
+            started = true;
         } catch (Exception e) {
             Repal.LOGGER.error("Failed to process textures", e);
+        } finally {
+            // Otherwise the export thread clears it when it is done
+            if (!started) {
+                exporting.set(false);
+            }
         }
     }
 
-    private static void createPackMcmeta(Path outputDir) throws IOException {
+    private static void runExport(ResourceManager resourceManager, PackOutput output, List<ExportPipeline.Task> tasks,
+                                  byte[] packMcmeta, byte[] layerConfig) throws IOException {
+        // Only outputs whose inputs changed since the last export are rebuilt
+        ExportManifest manifest = ExportManifest.load(output);
+        try {
+            long start = System.nanoTime();
+            int written = new ExportPipeline(resourceManager, output, manifest).run(tasks);
+
+            Set<String> outputs = new HashSet<>();
+            for (ExportPipeline.Task task : tasks) {
+                outputs.add(task.getPath());
+            }
+            int removed = manifest.removeOrphans(outputs);
+            output.write(output.prepare("pack.mcmeta", packMcmeta));
+            output.write(output.prepare("repal_data/layers.json", layerConfig));
+            manifest.save();
+            output.finish();
+
+            Repal.LOGGER.info("Resource pack generation complete: {} ({} of {} textures written, {} removed, in {} ms)",
+                    output, written, tasks.size(), removed, (System.nanoTime() - start) / 1_000_000);
+        } catch (InterruptedException e) {
+            Repal.LOGGER.warn("Resource pack generation interrupted");
+        }
+    }
+
+    // The export runs in the background, so a failure would otherwise only show up in the log
+    private static void showFailure(Exception e) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        client.execute(() -> SystemToast.show(client.getToastManager(), SystemToast.Type.PACK_COPY_FAILURE,
+                Text.translatable("repal.status.failed"), Text.literal(String.valueOf(e.getMessage()))));
+    }
+
+    private static byte[] createPackMcmeta() {
         JsonObject pack = new JsonObject();
         pack.addProperty("pack_format", 15); // Minecraft 1.21 pack format
         pack.addProperty("description", "Generated by Repal - " + Repal.getPackName());
         JsonObject root = new JsonObject();
         root.add("pack", pack);
-        Files.write(
-                outputDir.resolve("pack.mcmeta"),
-                GSON.toJson(root).getBytes()
-        );
+        return GSON.toJson(root).getBytes();
     }
 
-    private static void saveLayerConfig(Path outputDir, List<LayerInfo> layers) throws IOException {
-        Path configDir = outputDir.resolve("repal_data");
-        Files.createDirectories(configDir);
-
+    private static byte[] createLayerConfig(List<LayerInfo> layers) {
         JsonObject config = new JsonObject();
         for (LayerInfo layer : layers) {
             JsonObject layerConfig = new JsonObject();
@@ -86,40 +148,37 @@ public class TextureProcessor {
             layerConfig.addProperty("palette", layer.getPalette());
             config.add(layer.getId().toString(), layerConfig);
         }
-
-        Files.write(
-                configDir.resolve("layers.json"),
-                GSON.toJson(config).getBytes()
-        );
+        return GSON.toJson(config).getBytes();
     }
 
-    private static void processLayer(LayerInfo layer, ResourceManager resourceManager, Path outputDir) {
+    private static void processLayer(LayerInfo layer, Map<String, ExportPipeline.Task> tasks) {
         try {
             Repal.LOGGER.info("Processing layer '{}' with {} textures",
                     layer.getName(), layer.getTextures().size());
 
             Map<String, List<Identifier>> groups = groupTextures(layer.getTextures());
-            List<Color> palette = RepalResourceReloadListener.getLayerPaletteColors(layer);
+            LabPalette palette = RepalResourceReloadListener.getLayerLabPalette(layer);
+            PaletteLookupTable table = createLookupTable(layer, palette);
 
             // Process each texture group within the layer
             for (Map.Entry<String, List<Identifier>> entry : groups.entrySet()) {
                 processTextureGroup(
                         entry.getKey(),
                         entry.getValue(),
-                        resourceManager,
-                        outputDir,
                         layer,
-                        palette
+                        palette,
+                        table,
+                        tasks
                 );
             }
 
-            Repal.LOGGER.info("Layer '{}' processing complete", layer.getName());
+            Repal.LOGGER.info("Layer '{}' queued for processing", layer.getName());
         } catch (Exception e) {
             Repal.LOGGER.error("Failed to process layer '{}'", layer.getName(), e);
         }
     }
 
-    private static void processUnassignedTextures(ResourceManager resourceManager, Path outputDir) {
+    private static void processUnassignedTextures(Map<String, ExportPipeline.Task> tasks) {
         List<Identifier> unassigned = TextureManager.getUnassignedTextures();
         if (unassigned.isEmpty()) {
             return;
@@ -130,21 +189,31 @@ public class TextureProcessor {
 
         // Create a temporary layer with default settings
         LayerInfo defaultLayer = new LayerInfo("Default");
-        List<Color> defaultPalette = RepalResourceReloadListener.getLayerPaletteColors(defaultLayer);
+        LabPalette defaultPalette = RepalResourceReloadListener.getLayerLabPalette(defaultLayer);
+        PaletteLookupTable defaultTable = createLookupTable(defaultLayer, defaultPalette);
 
         // Process each group
         for (Map.Entry<String, List<Identifier>> entry : groups.entrySet()) {
             processTextureGroup(
                     entry.getKey(),
                     entry.getValue(),
-                    resourceManager,
-                    outputDir,
                     defaultLayer,
-                    defaultPalette
+                    defaultPalette,
+                    defaultTable,
+                    tasks
             );
         }
     }
 
+    // One table per layer, shared by every texture in it; null when there is no palette to map to
+    private static PaletteLookupTable createLookupTable(LayerInfo layer, LabPalette palette) {
+        if (palette == null) {
+            Repal.LOGGER.info("empty palette");
+            return null;
+        }
+        return PaletteLookupTable.get(palette, ColorAdjustment.of(layer));
+    }
+
     private static Map<String, List<Identifier>> groupTextures(Collection<Identifier> textures) {
         Map<String, List<Identifier>> groups = new HashMap<>();
         // Initialize groups for all suffixes
@@ -177,37 +246,20 @@ public class TextureProcessor {
     private static void processTextureGroup(
             String suffix,
             List<Identifier> textures,
-            ResourceManager resourceManager,
-            Path outputDir,
             LayerInfo layer,
-            List<Color> palette
+            LabPalette palette,
+            PaletteLookupTable table,
+            Map<String, ExportPipeline.Task> tasks
     ) {
-        try {
-            Repal.LOGGER.info("Processing texture group '{}' in layer '{}' with {} textures",
-                    suffix.isEmpty() ? "default" : suffix, layer.getName(), textures.size());
-            for (Identifier id : textures) {
-                try (InputStream stream = resourceManager.getResource(id).get().getInputStream()) {
-                    BufferedImage image = ImageIO.read(stream);
-                    BufferedImage processed = ImageProcessor.processImage(
-                            image,
-                            palette,
-                            layer.getContrast(),
-                            layer.getSaturation(),
-                            layer.getHue()  // Added hue parameter
-                    );
-
-                    // Save processed texture
-                    String relativePath = id.getPath().substring("textures/".length());
-                    Path outputPath = outputDir.resolve("assets/minecraft/textures").resolve(relativePath);
-                    Files.createDirectories(outputPath.getParent());
-                    ImageIO.write(processed, "png", outputPath.toFile());
-                } catch (Exception e) {
-                    Repal.LOGGER.error("Failed to process texture {} in layer {}", id, layer.getName(), e);
-                }
+        Repal.LOGGER.info("Processing texture group '{}' in layer '{}' with {} textures",
+                suffix.isEmpty() ? "default" : suffix, layer.getName(), textures.size());
+        long paramsHash = ExportManifest.paramsHash(ColorAdjustment.of(layer), Repal.isIndexedPngOutput());
+        long paletteHash = palette != null ? palette.getFingerprint() : 0;
+        for (Identifier id : textures) {
+            String outputPath = "assets/minecraft/textures/" + id.getPath().substring("textures/".length());
+            if (tasks.put(outputPath, new ExportPipeline.Task(id, outputPath, layer, table, paramsHash, paletteHash)) != null) {
+                Repal.LOGGER.debug("{} is in more than one layer, using layer '{}'", id, layer.getName());
             }
-        } catch (Exception e) {
-            Repal.LOGGER.error("Failed to process texture group '{}' in layer '{}'",
-                    suffix, layer.getName(), e);
         }
     }
-}
\ No newline at end of file
+}
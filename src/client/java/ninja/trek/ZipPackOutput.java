@@ -0,0 +1,421 @@
+package ninja.trek;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Streams the pack into resourcepacks/<pack>.zip. Entries are deflated by the export workers into
+ * per-thread buffers and appended here one at a time, which ZipOutputStream can't do since it
+ * compresses on the writing thread. Unchanged files are copied over from the previous archive
+ * without being inflated. The archive is built under a temporary name and only replaces the old
+ * one in {@link #finish()}. Plain zip without Zip64, so a pack is limited to 4 GiB and 65535 files.
+ */
+public class ZipPackOutput implements PackOutput {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int LOCAL_HEADER_BYTES = 30;
+    private static final int CENTRAL_HEADER_BYTES = 46;
+    private static final int END_BYTES = 22;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[64 << 10]);
+
+    // An entry as recorded in a central directory
+    private static class DirectoryRecord {
+        private final byte[] name;
+        private final boolean deflated;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+
+        DirectoryRecord(byte[] name, boolean deflated, long crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.deflated = deflated;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    private final Path zip;
+    private final Path temp;
+    private final boolean store;
+    private final FileChannel out;
+    private final FileChannel previous;
+    private final Map<String, DirectoryRecord> existing;
+    private final List<DirectoryRecord> written = new ArrayList<>();
+    private final int dosTime;
+    private final int dosDate;
+    private boolean finished = false;
+
+    private ZipPackOutput(Path zip, boolean store) throws IOException {
+        this.zip = zip;
+        this.temp = zip.resolveSibling(zip.getFileName() + ".tmp");
+        this.store = store;
+
+        FileChannel old = null;
+        Map<String, DirectoryRecord> records = new HashMap<>();
+        if (Files.isRegularFile(zip)) {
+            try {
+                old = FileChannel.open(zip, StandardOpenOption.READ);
+                records = readCentralDirectory(old);
+            } catch (IOException e) {
+                // Not an archive we can reuse; everything gets rebuilt
+                Repal.LOGGER.warn("Ignoring unreadable pack archive {}", zip, e);
+                records = new HashMap<>();
+            }
+        }
+        this.previous = old;
+        this.existing = records;
+
+        try {
+            Files.createDirectories(zip.getParent());
+            this.out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            if (old != null) {
+                old.close();
+            }
+            throw e;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() / 2);
+        dosDate = ((now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+    }
+
+    /**
+     * @param store write entries uncompressed instead of deflating them
+     */
+    public static ZipPackOutput open(Path zip, boolean store) throws IOException {
+        return new ZipPackOutput(zip, store);
+    }
+
+    @Override
+    public Entry prepare(String path, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (store) {
+            return new Entry(path, data, data.length, crc.getValue(), false);
+        }
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = BUFFERS.get();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                BUFFERS.set(buffer);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        // Already-compressed PNGs often come out larger; keep those as they are
+        if (length >= data.length) {
+            return new Entry(path, data, data.length, crc.getValue(), false);
+        }
+        return new Entry(path, Arrays.copyOf(buffer, length), data.length, crc.getValue(), true);
+    }
+
+    @Override
+    public synchronized void write(Entry entry) throws IOException {
+        byte[] name = entry.path.getBytes(StandardCharsets.UTF_8);
+        DirectoryRecord record = new DirectoryRecord(
+                name, entry.deflated, entry.crc, entry.data.length, entry.size, out.position());
+        writeLocalHeader(record);
+        writeFully(ByteBuffer.wrap(entry.data));
+        written.add(record);
+    }
+
+    @Override
+    public byte[] readExisting(String path) throws IOException {
+        DirectoryRecord record = existing.get(path);
+        if (record == null) {
+            return null;
+        }
+        byte[] data = new byte[(int) record.compressedSize];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = dataOffset(record);
+        while (buffer.hasRemaining()) {
+            if (previous.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated pack archive " + zip);
+            }
+        }
+        if (!record.deflated) {
+            return data;
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[(int) record.size];
+            int length = 0;
+            while (length < result.length && !inflater.finished()) {
+                int n = inflater.inflate(result, length, result.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != result.length) {
+                throw new IOException("Corrupt entry " + path + " in " + zip);
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry " + path + " in " + zip, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public boolean hasExisting(String path) {
+        return existing.containsKey(path);
+    }
+
+    @Override
+    public synchronized void keep(String path) throws IOException {
+        DirectoryRecord old = existing.get(path);
+        if (old == null) {
+            throw new IOException("No entry " + path + " in " + zip);
+        }
+        DirectoryRecord record = new DirectoryRecord(
+                old.name, old.deflated, old.crc, old.compressedSize, old.size, out.position());
+        writeLocalHeader(record);
+        long position = dataOffset(old);
+        long remaining = old.compressedSize;
+        while (remaining > 0) {
+            long n = previous.transferTo(position, remaining, out);
+            if (n <= 0) {
+                throw new IOException("Truncated pack archive " + zip);
+            }
+            position += n;
+            remaining -= n;
+        }
+        written.add(record);
+    }
+
+    @Override
+    public void remove(String path) {
+        // Files that are neither written nor kept are simply left out of the new archive
+    }
+
+    // Entries must be appended one at a time
+    @Override
+    public int getWriterThreads() {
+        return 1;
+    }
+
+    /**
+     * Writes the central directory and moves the archive into place. If the old archive can't be
+     * replaced (Windows refuses while the game has the pack open), the new one is kept beside it as
+     * &lt;pack&gt;.zip.new and the exception says so.
+     */
+    @Override
+    public synchronized void finish() throws IOException {
+        if (written.size() > 0xFFFF) {
+            throw new IOException("Too many files for a pack archive: " + written.size());
+        }
+        long directoryOffset = out.position();
+        for (DirectoryRecord record : written) {
+            ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_BYTES + record.name.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CENTRAL_HEADER)
+                    .putShort((short) VERSION)
+                    .putShort((short) VERSION)
+                    .putShort((short) FLAG_UTF8)
+                    .putShort((short) (record.deflated ? METHOD_DEFLATED : METHOD_STORED))
+                    .putShort((short) dosTime)
+                    .putShort((short) dosDate)
+                    .putInt((int) record.crc)
+                    .putInt((int) record.compressedSize)
+                    .putInt((int) record.size)
+                    .putShort((short) record.name.length)
+                    .putShort((short) 0) // Extra field length
+                    .putShort((short) 0) // Comment length
+                    .putShort((short) 0) // Disk number
+                    .putShort((short) 0) // Internal attributes
+                    .putInt(0) // External attributes
+                    .putInt((int) record.offset)
+                    .put(record.name)
+                    .flip();
+            writeFully(header);
+        }
+        long directorySize = out.position() - directoryOffset;
+        checkSize(out.position());
+
+        ByteBuffer end = ByteBuffer.allocate(END_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_OF_CENTRAL_DIRECTORY)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) written.size())
+                .putShort((short) written.size())
+                .putInt((int) directorySize)
+                .putInt((int) directoryOffset)
+                .putShort((short) 0)
+                .flip();
+        writeFully(end);
+
+        out.close();
+        if (previous != null) {
+            previous.close();
+        }
+        // The archive is complete, so from here on it is kept whatever happens
+        finished = true;
+        try {
+            try {
+                Files.move(temp, zip, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, zip, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Path pending = zip.resolveSibling(zip.getFileName() + ".new");
+            Files.move(temp, pending, StandardCopyOption.REPLACE_EXISTING);
+            throw new IOException("Could not replace " + zip.getFileName() + ", it may be in use; the new pack was saved as "
+                    + pending.getFileName(), e);
+        }
+    }
+
+    /**
+     * Discards the new archive unless it was finished; the previous one stays as it was.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!finished) {
+            out.close();
+            if (previous != null) {
+                previous.close();
+            }
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return zip.toString();
+    }
+
+    private void writeLocalHeader(DirectoryRecord record) throws IOException {
+        checkSize(record.offset + LOCAL_HEADER_BYTES + record.name.length + record.compressedSize);
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_BYTES + record.name.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER)
+                .putShort((short) VERSION)
+                .putShort((short) FLAG_UTF8)
+                .putShort((short) (record.deflated ? METHOD_DEFLATED : METHOD_STORED))
+                .putShort((short) dosTime)
+                .putShort((short) dosDate)
+                .putInt((int) record.crc)
+                .putInt((int) record.compressedSize)
+                .putInt((int) record.size)
+                .putShort((short) record.name.length)
+                .putShort((short) 0) // Extra field length
+                .put(record.name)
+                .flip();
+        writeFully(header);
+    }
+
+    // The name and extra field lengths in the local header may differ from the central directory
+    private long dataOffset(DirectoryRecord record) throws IOException {
+        ByteBuffer header = readAt(previous, record.offset, LOCAL_HEADER_BYTES);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new IOException("Corrupt pack archive " + zip);
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        return record.offset + LOCAL_HEADER_BYTES + nameLength + extraLength;
+    }
+
+    private static Map<String, DirectoryRecord> readCentralDirectory(FileChannel channel) throws IOException {
+        Map<String, DirectoryRecord> records = new HashMap<>();
+        long size = channel.size();
+        if (size < END_BYTES) {
+            throw new IOException("Not a zip archive");
+        }
+        // Archives written here never have a comment, so the end record is the last thing in the file
+        ByteBuffer end = readAt(channel, size - END_BYTES, END_BYTES);
+        if (end.getInt(0) != END_OF_CENTRAL_DIRECTORY) {
+            throw new IOException("Missing end of central directory");
+        }
+        int count = end.getShort(10) & 0xFFFF;
+        long directorySize = end.getInt(12) & 0xFFFFFFFFL;
+        long directoryOffset = end.getInt(16) & 0xFFFFFFFFL;
+        ByteBuffer directory = readAt(channel, directoryOffset, (int) directorySize);
+
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            if (directory.getInt(p) != CENTRAL_HEADER) {
+                throw new IOException("Corrupt central directory");
+            }
+            int method = directory.getShort(p + 10) & 0xFFFF;
+            if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+                throw new IOException("Unsupported compression method " + method);
+            }
+            int nameLength = directory.getShort(p + 28) & 0xFFFF;
+            int extraLength = directory.getShort(p + 30) & 0xFFFF;
+            int commentLength = directory.getShort(p + 32) & 0xFFFF;
+            byte[] name = new byte[nameLength];
+            directory.get(p + CENTRAL_HEADER_BYTES, name);
+            records.put(new String(name, StandardCharsets.UTF_8), new DirectoryRecord(
+                    name,
+                    method == METHOD_DEFLATED,
+                    directory.getInt(p + 16) & 0xFFFFFFFFL,
+                    directory.getInt(p + 20) & 0xFFFFFFFFL,
+                    directory.getInt(p + 24) & 0xFFFFFFFFL,
+                    directory.getInt(p + 42) & 0xFFFFFFFFL
+            ));
+            p += CENTRAL_HEADER_BYTES + nameLength + extraLength + commentLength;
+        }
+        return records;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of zip archive");
+            }
+        }
+        return buffer;
+    }
+
+    private void checkSize(long size) throws IOException {
+        if (size > 0xFFFFFFFFL) {
+            throw new IOException("Pack archive would exceed 4 GiB: " + zip);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
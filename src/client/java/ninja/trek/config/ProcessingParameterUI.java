@@ -66,7 +66,7 @@ public class ProcessingParameterUI {
             LayerInfo layer = LayerManager.getInstance().getActiveLayer();
             if (layer != null) {
                 layer.setContrast(value);
-                ProcessedTextureCache.clearCache();
+                ProcessedTextureCache.invalidateLayer(layer.getId());
             }
         }
 
@@ -98,7 +98,7 @@ public class ProcessingParameterUI {
             LayerInfo layer = LayerManager.getInstance().getActiveLayer();
             if (layer != null) {
                 layer.setSaturation(value);
-                ProcessedTextureCache.clearCache();
+                ProcessedTextureCache.invalidateLayer(layer.getId());
             }
         }
 
@@ -130,7 +130,7 @@ public class ProcessingParameterUI {
             LayerInfo layer = LayerManager.getInstance().getActiveLayer();
             if (layer != null) {
                 layer.setHue(value);
-                ProcessedTextureCache.clearCache();
+                ProcessedTextureCache.invalidateLayer(layer.getId());
             }
         }
 
@@ -236,11 +236,8 @@ public class ProcessingParameterUI {
                                 LayerInfo activeLayer = LayerManager.getInstance().getActiveLayer();
                                 if (activeLayer != null) {
                                     activeLayer.setPalette(selected);
-                                    ImageProcessor.clearCache();  // ← Clears the old color→color mappings
-                                    // Clear the entire processed texture cache
-                                    ProcessedTextureCache.clearCache();
-                                    // Optionally clear just the active layer’s cache if you prefer:
-                                     ProcessedTextureCache.clearLayerCache(activeLayer.getId());
+                                    // Only this layer's previews need redoing; they keep showing until replaced
+                                    ProcessedTextureCache.invalidateLayer(activeLayer.getId());
                                     // Instead of just reprocessing the current preview, force a full update:
                                     MinecraftClient.getInstance().execute(() -> {
                                         texturePreviewUI.updateTextureList();
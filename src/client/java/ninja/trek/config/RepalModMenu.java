@@ -10,6 +10,7 @@ import net.minecraft.client.gui.screen.Screen;
 import net.minecraft.client.gui.widget.ButtonWidget;
 import net.minecraft.text.Text;
 import ninja.trek.LayerInfo;
+import ninja.trek.ProcessedTextureCache;
 import ninja.trek.TextureProcessor;
 
 public class RepalModMenu implements ModMenuApi {
@@ -24,6 +25,8 @@ public class RepalModMenu implements ModMenuApi {
         private LayerManagementUI layerUI;
         private ProcessingParameterUI processingUI;
         private ButtonWidget processButton;
+        private ButtonWidget zipOutputButton;
+        private ButtonWidget zipStoreButton;
         private TexturePreviewUI texturePreviewUI;
 
         // Layout constants
@@ -79,6 +82,16 @@ public class RepalModMenu implements ModMenuApi {
                     .build();
             addDrawableChild(processButton);
 
+            // Export format toggles just above it
+            zipOutputButton = ButtonWidget.builder(zipOutputMessage(), this::onZipOutputClick)
+                    .dimensions(width - SIDE_PANEL_WIDTH, height - 55, SIDE_PANEL_WIDTH / 2 - 2, 20)
+                    .build();
+            addDrawableChild(zipOutputButton);
+            zipStoreButton = ButtonWidget.builder(zipStoreMessage(), this::onZipStoreClick)
+                    .dimensions(width - SIDE_PANEL_WIDTH / 2 + 2, height - 55, SIDE_PANEL_WIDTH / 2 - 2, 20)
+                    .build();
+            addDrawableChild(zipStoreButton);
+
             // Add additional UI elements (layer and preset buttons)
             addDrawableChildren();
         }
@@ -87,6 +100,30 @@ public class RepalModMenu implements ModMenuApi {
             TextureProcessor.processAllTextures();
         }
 
+        private void onZipOutputClick(ButtonWidget button) {
+            RepalConfig config = RepalConfig.get();
+            config.setZipPackOutput(!config.zipPackOutput());
+            button.setMessage(zipOutputMessage());
+        }
+
+        private void onZipStoreClick(ButtonWidget button) {
+            RepalConfig config = RepalConfig.get();
+            config.setZipStoreEntries(!config.zipStoreEntries());
+            button.setMessage(zipStoreMessage());
+        }
+
+        private Text zipOutputMessage() {
+            return Text.translatable("repal.config.zip_output", onOff(RepalConfig.get().zipPackOutput()));
+        }
+
+        private Text zipStoreMessage() {
+            return Text.translatable("repal.config.zip_store", onOff(RepalConfig.get().zipStoreEntries()));
+        }
+
+        private Text onOff(boolean value) {
+            return Text.translatable(value ? "options.on" : "options.off");
+        }
+
         @Override
         public void render(DrawContext context, int mouseX, int mouseY, float delta) {
             super.render(context, mouseX, mouseY, delta);
@@ -94,6 +131,10 @@ public class RepalModMenu implements ModMenuApi {
             textureSearch.render(context, mouseX, mouseY, delta);
             layerUI.render(context, mouseX, mouseY, delta);
             texturePreviewUI.render(context, mouseX, mouseY);
+            // Exports run in the background; one at a time
+            processButton.active = !TextureProcessor.isExporting();
+            // Only zip output has entries to store
+            zipStoreButton.active = RepalConfig.get().zipPackOutput();
             processButton.render(context, mouseX, mouseY, delta);
         }
 
@@ -160,6 +201,13 @@ public class RepalModMenu implements ModMenuApi {
             processingUI.tick();
         }
 
+        @Override
+        public void removed() {
+            super.removed();
+            // Nothing draws the grid anymore, so previews still waiting for a worker are not needed
+            ProcessedTextureCache.cancelQueued();
+        }
+
         public void updateSliderValues(LayerInfo layer) {
             if (processingUI != null) {
                 processingUI.updateValues(layer);
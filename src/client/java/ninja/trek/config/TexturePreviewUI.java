@@ -9,6 +9,7 @@ import net.minecraft.util.Formatting;
 import net.minecraft.util.Identifier;
 import ninja.trek.LayerInfo;
 import ninja.trek.LayerManager;
+import ninja.trek.PreviewAtlas;
 import ninja.trek.ProcessedTextureCache;
 import ninja.trek.Repal;
 import ninja.trek.TextureManager;
@@ -195,6 +196,8 @@ public class TexturePreviewUI {
         int startIndex = currentScrollRow * columnsPerRow;
         int endIndex = Math.min(startIndex + (visibleRows * columnsPerRow), layerTextures.size());
 
+        ProcessedTextureCache.beginFrame();
+
         // Render each texture in the grid
         for (int i = startIndex; i < endIndex; i++) {
             if (i >= layerTextures.size()) break;
@@ -220,6 +223,15 @@ public class TexturePreviewUI {
             );
         }
 
+        // Prepare the pages around the visible one, behind everything on screen
+        int pageSize = visibleRows * columnsPerRow;
+        for (int i = endIndex; i < Math.min(endIndex + pageSize, layerTextures.size()); i++) {
+            ProcessedTextureCache.prefetch(layerTextures.get(i), layer, ProcessedTextureCache.PRIORITY_NEXT_PAGE);
+        }
+        for (int i = Math.max(0, startIndex - pageSize); i < startIndex; i++) {
+            ProcessedTextureCache.prefetch(layerTextures.get(i), layer, ProcessedTextureCache.PRIORITY_PREVIOUS_PAGE);
+        }
+
         // Update scroll buttons after rendering
         updateScrollButtons();
     }
@@ -277,19 +289,17 @@ public class TexturePreviewUI {
     private void renderProcessedTexture(DrawContext context, Identifier texture,
                                         LayerInfo layer, int baseX, int previewY) {
         try {
-            Identifier processedTexture = ProcessedTextureCache.getProcessedTexture(texture, layer);
+            PreviewAtlas.Slot processedTexture = ProcessedTextureCache.getProcessedTexture(texture, layer);
             if (processedTexture != null) {
-                context.drawTexture(
-                        processedTexture,
+                processedTexture.draw(
+                        context,
                         baseX + PREVIEW_SIZE + SPACING_BETWEEN_PREVIEWS,
                         previewY,
-                        0, 0,
-                        PREVIEW_SIZE,
-                        PREVIEW_SIZE,
                         PREVIEW_SIZE,
                         PREVIEW_SIZE
                 );
             } else {
+                // Still processing in the background: show the original, dimmed, as a placeholder
                 context.drawTexture(
                         texture,
                         baseX + PREVIEW_SIZE + SPACING_BETWEEN_PREVIEWS,
@@ -305,7 +315,7 @@ public class TexturePreviewUI {
                         previewY,
                         baseX + PREVIEW_SIZE * 2 + SPACING_BETWEEN_PREVIEWS,
                         previewY + PREVIEW_SIZE,
-                        0x40FF0000
+                        0x80000000
                 );
             }
         } catch (Exception e) {
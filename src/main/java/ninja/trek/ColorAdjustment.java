@@ -0,0 +1,147 @@
+package ninja.trek;
+
+import java.util.Objects;
+
+/**
+ * A layer's contrast/saturation/hue pre-adjustment. Lookup tables bake it in when they fill,
+ * so it never runs per pixel; neutral settings skip the HSB round trip entirely, which is an
+ * exact identity for 8-bit colors anyway.
+ */
+public final class ColorAdjustment {
+    public static final ColorAdjustment NONE = new ColorAdjustment(0, 0, 0);
+
+    private final int contrast;
+    private final int saturation;
+    private final int hue;
+    private final float contrastFactor;
+    private final float saturationFactor;
+    private final float hueShift;
+
+    private ColorAdjustment(int contrast, int saturation, int hue) {
+        this.contrast = contrast;
+        this.saturation = saturation;
+        this.hue = hue;
+        this.contrastFactor = (100.0f + contrast) / 100.0f;
+        this.saturationFactor = (100.0f + saturation) / 100.0f;
+        this.hueShift = hue / 100.0f * 360.0f; // Convert -100 to 100 range to -360 to 360 degrees
+    }
+
+    public static ColorAdjustment of(int contrast, int saturation, int hue) {
+        if (contrast == 0 && saturation == 0 && hue == 0) {
+            return NONE;
+        }
+        return new ColorAdjustment(contrast, saturation, hue);
+    }
+
+    public static ColorAdjustment of(LayerInfo layer) {
+        return of(layer.getContrast(), layer.getSaturation(), layer.getHue());
+    }
+
+    public int getContrast() {
+        return contrast;
+    }
+
+    public int getSaturation() {
+        return saturation;
+    }
+
+    public int getHue() {
+        return hue;
+    }
+
+    public boolean isIdentity() {
+        return this == NONE;
+    }
+
+    /**
+     * Returns the adjusted color as 0xRRGGBB; hsb is scratch space so callers can avoid allocating.
+     */
+    public int apply(int rgb, float[] hsb) {
+        if (isIdentity()) {
+            return rgb & 0xFFFFFF;
+        }
+
+        rgbToHsb((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, hsb);
+
+        // Adjust hue (normalized to 0-1 range)
+        hsb[0] = (hsb[0] + (hueShift / 360.0f)) % 1.0f;
+        if (hsb[0] < 0) hsb[0] += 1.0f; // Handle negative hue values
+
+        // Adjust saturation
+        hsb[1] = Math.max(0.0f, Math.min(1.0f, hsb[1] * saturationFactor));
+
+        // Adjust contrast (using brightness)
+        float adjustedBrightness = ((hsb[2] - 0.5f) * contrastFactor) + 0.5f;
+        hsb[2] = Math.max(0.0f, Math.min(1.0f, adjustedBrightness));
+
+        // Convert back to RGB
+        return hsbToRgb(hsb[0], hsb[1], hsb[2]);
+    }
+
+    // The conversions below follow java.awt.Color's step for step, so tables come out the same
+    // as they did through AWT without loading it
+    private static void rgbToHsb(int r, int g, int b, float[] hsb) {
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        float saturation = max != 0 ? (float) (max - min) / (float) max : 0;
+        float hue = 0;
+        if (saturation != 0) {
+            float redc = (float) (max - r) / (float) (max - min);
+            float greenc = (float) (max - g) / (float) (max - min);
+            float bluec = (float) (max - b) / (float) (max - min);
+            if (r == max) {
+                hue = bluec - greenc;
+            } else if (g == max) {
+                hue = 2.0f + redc - bluec;
+            } else {
+                hue = 4.0f + greenc - redc;
+            }
+            hue = hue / 6.0f;
+            if (hue < 0) {
+                hue = hue + 1.0f;
+            }
+        }
+        hsb[0] = hue;
+        hsb[1] = saturation;
+        hsb[2] = (float) max / 255.0f;
+    }
+
+    // Returns 0xRRGGBB
+    private static int hsbToRgb(float hue, float saturation, float brightness) {
+        if (saturation == 0) {
+            int v = (int) (brightness * 255.0f + 0.5f);
+            return (v << 16) | (v << 8) | v;
+        }
+        float h = (hue - (float) Math.floor(hue)) * 6.0f;
+        float f = h - (float) Math.floor(h);
+        float p = brightness * (1.0f - saturation);
+        float q = brightness * (1.0f - saturation * f);
+        float t = brightness * (1.0f - (saturation * (1.0f - f)));
+        float r, g, b;
+        switch ((int) h) {
+            case 0: r = brightness; g = t; b = p; break;
+            case 1: r = q; g = brightness; b = p; break;
+            case 2: r = p; g = brightness; b = t; break;
+            case 3: r = p; g = q; b = brightness; break;
+            case 4: r = t; g = p; b = brightness; break;
+            case 5: r = brightness; g = p; b = q; break;
+            default: return 0;
+        }
+        return ((int) (r * 255.0f + 0.5f) << 16) | ((int) (g * 255.0f + 0.5f) << 8) | (int) (b * 255.0f + 0.5f);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ColorAdjustment other = (ColorAdjustment) o;
+        return contrast == other.contrast &&
+                saturation == other.saturation &&
+                hue == other.hue;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(contrast, saturation, hue);
+    }
+}
@@ -1,107 +1,107 @@
 package ninja.trek;
 
-import java.awt.image.BufferedImage;
-import java.awt.Color;
-import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class ImageProcessor {
-    private static final Map<Color, Color> colorMappingCache = new HashMap<>();
-
-    public static BufferedImage processImage(BufferedImage input, List<Color> targetPalette, int contrast, int saturation, int hue) {
-        if (targetPalette.isEmpty()) {
-            Repal.LOGGER.info("empty palette");
-            return input;
-        }
-
-        BufferedImage output = new BufferedImage(input.getWidth(), input.getHeight(), BufferedImage.TYPE_INT_ARGB);
-
-        // Pre-process adjustments
-        float contrastFactor = (100.0f + contrast) / 100.0f;
-        float saturationFactor = (100.0f + saturation) / 100.0f;
-        float hueShift = hue / 100.0f * 360.0f; // Convert -100 to 100 range to -360 to 360 degrees
-
-        // Process each pixel
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                Color inputColor = new Color(input.getRGB(x, y), true);
-
-                // Skip fully transparent pixels
-                if (inputColor.getAlpha() == 0) {
-                    output.setRGB(x, y, inputColor.getRGB());
-                    continue;
-                }
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 512 * 512;
+    // Bump whenever recoloring output changes, so persisted results made by older versions are not reused
+    public static final int ENGINE_VERSION = 1;
+    // Rows are split until a band holds about this many pixels
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Recolors a width x height ARGB raster. Images above the parallel threshold are split
+     * into row bands and processed on the common ForkJoin pool; every band writes its own
+     * rows and table fills are idempotent, so the result does not depend on scheduling.
+     */
+    public static void processPixels(int[] src, int[] dst, int width, int height, PaletteLookupTable table) {
+        forEachBand(width, height, (offset, length) -> processPixels(src, offset, dst, offset, length, table));
+    }
 
-                // Apply pre-processing adjustments
-                Color adjustedColor = adjustColor(inputColor, contrastFactor, saturationFactor, hueShift);
+    /**
+     * Work on a run of whole rows, given as a pixel offset and length into the raster.
+     */
+    interface RowBand {
+        void run(int offset, int length);
+    }
 
-                // Find closest palette color
-                Color mappedColor = colorMappingCache.computeIfAbsent(adjustedColor,
-                        color -> findClosestPaletteColor(color, targetPalette));
+    /**
+     * Runs band over all rows of a width x height raster: in one call below the parallel
+     * threshold, otherwise in row bands on the common ForkJoin pool. Bands never overlap.
+     */
+    static void forEachBand(int width, int height, RowBand band) {
+        if ((long) width * height < parallelThreshold || height < 2) {
+            band.run(0, width * height);
+            return;
+        }
+        int bandRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, width));
+        ForkJoinPool.commonPool().invoke(new BandTask(width, 0, height, bandRows, band));
+    }
 
-                // Preserve original alpha
-                Color finalColor = new Color(
-                        mappedColor.getRed(),
-                        mappedColor.getGreen(),
-                        mappedColor.getBlue(),
-                        inputColor.getAlpha()
-                );
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int width;
+        private final int startRow;
+        private final int endRow;
+        private final int bandRows;
+        private final transient RowBand band;
+
+        BandTask(int width, int startRow, int endRow, int bandRows, RowBand band) {
+            this.width = width;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandRows = bandRows;
+            this.band = band;
+        }
 
-                output.setRGB(x, y, finalColor.getRGB());
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= bandRows) {
+                band.run(startRow * width, (endRow - startRow) * width);
+                return;
             }
+            int mid = (startRow + endRow) >>> 1;
+            invokeAll(
+                    new BandTask(width, startRow, mid, bandRows, band),
+                    new BandTask(width, mid, endRow, bandRows, band)
+            );
         }
-        return output;
     }
 
-    private static Color adjustColor(Color input, float contrastFactor, float saturationFactor, float hueShift) {
-        float[] hsb = Color.RGBtoHSB(input.getRed(), input.getGreen(), input.getBlue(), null);
-
-        // Adjust hue (normalized to 0-1 range)
-        hsb[0] = (hsb[0] + (hueShift / 360.0f)) % 1.0f;
-        if (hsb[0] < 0) hsb[0] += 1.0f; // Handle negative hue values
-
-        // Adjust saturation
-        hsb[1] = Math.max(0.0f, Math.min(1.0f, hsb[1] * saturationFactor));
-
-        // Adjust contrast (using brightness)
-        float adjustedBrightness = ((hsb[2] - 0.5f) * contrastFactor) + 0.5f;
-        hsb[2] = Math.max(0.0f, Math.min(1.0f, adjustedBrightness));
-
-        // Convert back to RGB
-        return new Color(Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]));
+    /**
+     * Sets the pixel count from which images are processed in parallel row bands.
+     */
+    public static void setParallelThreshold(int pixels) {
+        parallelThreshold = Math.max(1, pixels);
     }
 
-    private static Color findClosestPaletteColor(Color input, List<Color> palette) {
-        Color closestColor = palette.get(0);
-        double minDistance = Double.MAX_VALUE;
+    /**
+     * Recolors packed ARGB pixels from src into dst. src and dst may be the same array.
+     * Allocates nothing, so it is safe to call on every texture of a large export.
+     */
+    public static void processPixels(int[] src, int srcOffset, int[] dst, int dstOffset, int length, PaletteLookupTable table) {
+        for (int i = 0; i < length; i++) {
+            int argb = src[srcOffset + i];
 
-        for (Color paletteColor : palette) {
-            double distance = calculateColorDistance(input, paletteColor);
-            if (distance < minDistance) {
-                minDistance = distance;
-                closestColor = paletteColor;
-            }
+            // Skip fully transparent pixels, preserve original alpha otherwise
+            dst[dstOffset + i] = (argb >>> 24) == 0 ? argb : (argb & 0xFF000000) | table.lookup(argb);
         }
-
-        return closestColor;
     }
 
-    private static double calculateColorDistance(Color c1, Color c2) {
-        // Using CIE76 color difference formula
-        double[] lab1 = rgbToLab(c1);
-        double[] lab2 = rgbToLab(c2);
-
-        double deltaL = lab1[0] - lab2[0];
-        double deltaA = lab1[1] - lab2[1];
-        double deltaB = lab1[2] - lab2[2];
-
-        return Math.sqrt(deltaL * deltaL + deltaA * deltaA + deltaB * deltaB);
+    public static void processPixels(int[] pixels, PaletteLookupTable table) {
+        processPixels(pixels, 0, pixels, 0, pixels.length, table);
     }
 
-    private static double[] rgbToLab(Color color) {
+    // CIE76 distances are computed on these coordinates; out receives L, a, b
+    static void rgbToLab(int rgb, double[] out) {
         // RGB to XYZ
-        double r = color.getRed() / 255.0;
-        double g = color.getGreen() / 255.0;
-        double b = color.getBlue() / 255.0;
+        double r = ((rgb >> 16) & 0xFF) / 255.0;
+        double g = ((rgb >> 8) & 0xFF) / 255.0;
+        double b = (rgb & 0xFF) / 255.0;
 
         r = r > 0.04045 ? Math.pow((r + 0.055) / 1.055, 2.4) : r / 12.92;
         g = g > 0.04045 ? Math.pow((g + 0.055) / 1.055, 2.4) : g / 12.92;
@@ -120,14 +120,14 @@ public class ImageProcessor {
         y = y > 0.008856 ? Math.pow(y, 1.0/3.0) : (7.787 * y) + 16.0/116.0;
         z = z > 0.008856 ? Math.pow(z, 1.0/3.0) : (7.787 * z) + 16.0/116.0;
 
-        return new double[] {
-                (116 * y) - 16,  // L
-                500 * (x - y),   // a
-                200 * (y - z)    // b
-        };
+        out[0] = (116 * y) - 16;  // L
+        out[1] = 500 * (x - y);   // a
+        out[2] = 200 * (y - z);   // b
     }
 
+    // Only frees memory: tables and caches are keyed by palette contents, so they never go stale
     public static void clearCache() {
-        colorMappingCache.clear();
+        PaletteLookupTable.clear();
+        PaletteColorCache.clearAll();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,185 @@
+package ninja.trek;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A decoded source texture split into its distinct ARGB colors and a per-pixel index plane.
+ * Block textures rarely use more than a few dozen colors, so recoloring only has to map
+ * those K colors and then expand the plane, instead of matching every pixel again.
+ */
+public class IndexedTexture {
+    private final int width;
+    private final int height;
+    private final int[] colors;
+    // Exactly one of these is set, depending on the number of colors; with neither, colors holds every pixel
+    private final byte[] byteIndices;
+    private final char[] charIndices;
+
+    private IndexedTexture(int width, int height, int[] colors, byte[] byteIndices, char[] charIndices) {
+        this.width = width;
+        this.height = height;
+        this.colors = colors;
+        this.byteIndices = byteIndices;
+        this.charIndices = charIndices;
+    }
+
+    /**
+     * Builds the indexed form of width x height packed ARGB pixels. The pixels are not kept.
+     */
+    public static IndexedTexture of(int[] argb, int width, int height) {
+        int length = width * height;
+        // Open addressing table of color -> index + 1, sized for at most 65536 colors
+        int capacity = Integer.highestOneBit(Math.max(16, Math.min(length, 1 << 16)) * 2 - 1) * 2;
+        int mask = capacity - 1;
+        int[] keys = new int[capacity];
+        int[] values = new int[capacity];
+        int[] colors = new int[Math.min(length, 1 << 16)];
+        char[] indices = new char[length];
+        int count = 0;
+
+        for (int i = 0; i < length; i++) {
+            int color = argb[i];
+            int slot = mix(color) & mask;
+            while (values[slot] != 0 && keys[slot] != color) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == 0) {
+                if (count == colors.length) {
+                    // Too many colors to be worth indexing, keep the raw pixels
+                    return new IndexedTexture(width, height, Arrays.copyOf(argb, length), null, null);
+                }
+                keys[slot] = color;
+                values[slot] = count + 1;
+                colors[count++] = color;
+            }
+            indices[i] = (char) (values[slot] - 1);
+        }
+
+        colors = Arrays.copyOf(colors, count);
+        if (count <= 256) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) indices[i];
+            }
+            return new IndexedTexture(width, height, colors, bytes, null);
+        }
+        return new IndexedTexture(width, height, colors, null, indices);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getColorCount() {
+        return colors.length;
+    }
+
+    // The arrays below are shared, not copied; callers must not modify them
+    int[] getColors() {
+        return colors;
+    }
+
+    // Null unless the texture has at most 256 colors
+    byte[] getByteIndices() {
+        return byteIndices;
+    }
+
+    public boolean isIndexed() {
+        return byteIndices != null || charIndices != null;
+    }
+
+    // Rough heap footprint, used for cache budgets
+    public long estimateBytes() {
+        long bytes = 4L * colors.length;
+        if (byteIndices != null) bytes += byteIndices.length;
+        if (charIndices != null) bytes += 2L * charIndices.length;
+        return bytes;
+    }
+
+    /**
+     * Recolors the texture: maps each distinct color once, then expands the index plane.
+     */
+    public int[] process(PaletteLookupTable table) {
+        int[] out = new int[width * height];
+        expand(mapColors(table), out);
+        return out;
+    }
+
+    /**
+     * Returns the recolored ARGB color table, parallel to this texture's colors, for use with
+     * {@link #expand}; a null table leaves the colors unchanged.
+     */
+    public int[] mapColors(PaletteLookupTable table) {
+        if (table == null) {
+            return colors.clone();
+        }
+        int[] mapped = new int[colors.length];
+        if (isIndexed()) {
+            ImageProcessor.processPixels(colors, 0, mapped, 0, colors.length, table);
+        } else {
+            ImageProcessor.processPixels(colors, mapped, width, height, table);
+        }
+        return mapped;
+    }
+
+    /**
+     * Returns the original pixels as packed ARGB.
+     */
+    public int[] toArgb() {
+        int[] out = new int[width * height];
+        expand(colors, out);
+        return out;
+    }
+
+    /**
+     * Writes colorTable[index] for every pixel into dst; colorTable must be parallel to this
+     * texture's colors.
+     */
+    public void expand(int[] colorTable, int[] dst) {
+        ImageProcessor.forEachBand(width, height, (offset, length) -> {
+            int end = offset + length;
+            if (byteIndices != null) {
+                for (int i = offset; i < end; i++) {
+                    dst[i] = colorTable[byteIndices[i] & 0xFF];
+                }
+            } else if (charIndices != null) {
+                for (int i = offset; i < end; i++) {
+                    dst[i] = colorTable[charIndices[i]];
+                }
+            } else {
+                System.arraycopy(colorTable, offset, dst, offset, length);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #expand(int[], int[])}, writing into a buffer such as a view of native image memory.
+     * Only absolute puts are used, so bands can write the same buffer concurrently.
+     */
+    public void expand(int[] colorTable, IntBuffer dst) {
+        ImageProcessor.forEachBand(width, height, (offset, length) -> {
+            int end = offset + length;
+            if (byteIndices != null) {
+                for (int i = offset; i < end; i++) {
+                    dst.put(i, colorTable[byteIndices[i] & 0xFF]);
+                }
+            } else if (charIndices != null) {
+                for (int i = offset; i < end; i++) {
+                    dst.put(i, colorTable[charIndices[i]]);
+                }
+            } else {
+                dst.put(offset, colorTable, offset, length);
+            }
+        });
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+}
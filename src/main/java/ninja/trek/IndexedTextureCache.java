@@ -0,0 +1,237 @@
+package ninja.trek;
+
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.resource.ResourcePack;
+import net.minecraft.util.Identifier;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the indexed form of every source texture that has been decoded, shared by the preview and
+ * the exporter, so palette and slider changes only remap colors instead of re-reading and
+ * re-decoding PNGs. Entries are keyed by the texture id and a fingerprint of the active resource
+ * pack stack, and the least recently used ones are dropped once their estimated size exceeds the
+ * budget. The cache is also dropped on resource reload.
+ */
+public class IndexedTextureCache {
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    private static class SourceKey {
+        private final Identifier id;
+        private final long packFingerprint;
+
+        SourceKey(Identifier id, long packFingerprint) {
+            this.id = id;
+            this.packFingerprint = packFingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SourceKey other = (SourceKey) o;
+            return packFingerprint == other.packFingerprint && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, packFingerprint);
+        }
+    }
+
+    private static final Map<SourceKey, IndexedTexture> textures = new LinkedHashMap<>(256, 0.75f, true);
+    // Hashes of the encoded source files, which persistent caches use to address results. Only a few
+    // dozen bytes each, but still capped so a long session over many packs can't grow it without end
+    private static final int MAX_SOURCE_HASHES = 1 << 14;
+    private static final Map<SourceKey, Long> sourceHashes = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SourceKey, Long> eldest) {
+            return size() > MAX_SOURCE_HASHES;
+        }
+    };
+    private static long cachedBytes = 0;
+    private static long budget = DEFAULT_BUDGET;
+    // Bumped by clear(), so work that started before a reload doesn't put stale results back
+    private static int generation = 0;
+
+    // The pack stack only changes on reload, so its fingerprint is computed once per manager
+    private static ResourceManager fingerprintSource;
+    private static long packFingerprint;
+
+    // The file getSourceHash last read on this thread; callers that miss the manifest or disk cache
+    // decode the same texture right after hashing it, and then don't have to read it again
+    private static final ThreadLocal<Pending> pending = new ThreadLocal<>();
+
+    private static class Pending {
+        private final SourceKey key;
+        private final int generation;
+        private final byte[] bytes;
+
+        Pending(SourceKey key, int generation, byte[] bytes) {
+            this.key = key;
+            this.generation = generation;
+            this.bytes = bytes;
+        }
+    }
+
+    public static IndexedTexture get(ResourceManager resourceManager, Identifier id) throws IOException {
+        SourceKey key;
+        int loadGeneration;
+        synchronized (textures) {
+            key = new SourceKey(id, getPackFingerprint(resourceManager));
+            loadGeneration = generation;
+            IndexedTexture texture = textures.get(key);
+            if (texture != null) {
+                return texture;
+            }
+        }
+
+        // Decode outside the lock; if two threads race on the same texture, the second result wins
+        IndexedTexture texture = load(resourceManager, key, loadGeneration);
+        synchronized (textures) {
+            if (generation != loadGeneration) {
+                return texture;
+            }
+            IndexedTexture replaced = textures.put(key, texture);
+            if (replaced != null) {
+                cachedBytes -= replaced.estimateBytes();
+            }
+            cachedBytes += texture.estimateBytes();
+            trim(key);
+        }
+        return texture;
+    }
+
+    /**
+     * Returns the decoded texture if it is cached, without loading it.
+     */
+    public static IndexedTexture getIfPresent(ResourceManager resourceManager, Identifier id) {
+        synchronized (textures) {
+            return textures.get(new SourceKey(id, getPackFingerprint(resourceManager)));
+        }
+    }
+
+    /**
+     * Returns a 64-bit hash of the texture's encoded file as provided by the current resource packs.
+     * Reading the bytes is much cheaper than decoding them, and is skipped if they were hashed before.
+     */
+    public static long getSourceHash(ResourceManager resourceManager, Identifier id) throws IOException {
+        pending.remove();
+        SourceKey key;
+        int hashGeneration;
+        synchronized (textures) {
+            key = new SourceKey(id, getPackFingerprint(resourceManager));
+            hashGeneration = generation;
+            Long hash = sourceHashes.get(key);
+            if (hash != null) {
+                return hash;
+            }
+        }
+
+        byte[] bytes = readBytes(resourceManager, id);
+        long hash = hashBytes(bytes);
+        putSourceHash(key, hashGeneration, hash);
+        pending.set(new Pending(key, hashGeneration, bytes));
+        return hash;
+    }
+
+    /**
+     * Drops the bytes {@link #getSourceHash} kept for a following {@link #get}. Callers that
+     * hash a texture and may not load it call this when done, so long-lived threads don't pin a file.
+     */
+    public static void discardPending() {
+        pending.remove();
+    }
+
+    private static IndexedTexture load(ResourceManager resourceManager, SourceKey key, int loadGeneration) throws IOException {
+        Pending read = pending.get();
+        pending.remove();
+        byte[] bytes;
+        if (read != null && read.generation == loadGeneration && read.key.equals(key)) {
+            bytes = read.bytes;
+        } else {
+            bytes = readBytes(resourceManager, key.id);
+            putSourceHash(key, loadGeneration, hashBytes(bytes));
+        }
+        PngDecoder.Image image;
+        try {
+            image = PngDecoder.decode(bytes);
+        } catch (IOException e) {
+            throw new IOException("Failed to read image: " + key.id, e);
+        }
+        return IndexedTexture.of(image.getPixels(), image.getWidth(), image.getHeight());
+    }
+
+    private static void putSourceHash(SourceKey key, int hashGeneration, long hash) {
+        synchronized (textures) {
+            if (generation == hashGeneration) {
+                sourceHashes.put(key, hash);
+            }
+        }
+    }
+
+    private static byte[] readBytes(ResourceManager resourceManager, Identifier id) throws IOException {
+        var resource = resourceManager.getResource(id)
+                .orElseThrow(() -> new IOException("Missing texture: " + id));
+        try (InputStream stream = resource.getInputStream()) {
+            return stream.readAllBytes();
+        }
+    }
+
+    // FNV-1a, 64-bit
+    private static long hashBytes(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Drops least recently used textures until we are back under budget, never evicting the one just added
+    private static void trim(SourceKey keep) {
+        Iterator<Map.Entry<SourceKey, IndexedTexture>> it = textures.entrySet().iterator();
+        while (cachedBytes > budget && it.hasNext()) {
+            Map.Entry<SourceKey, IndexedTexture> entry = it.next();
+            if (!entry.getKey().equals(keep)) {
+                cachedBytes -= entry.getValue().estimateBytes();
+                it.remove();
+            }
+        }
+    }
+
+    private static long getPackFingerprint(ResourceManager resourceManager) {
+        synchronized (textures) {
+            if (fingerprintSource != resourceManager) {
+                long hash = 0xcbf29ce484222325L;
+                Iterator<ResourcePack> packs = resourceManager.streamResourcePacks().iterator();
+                while (packs.hasNext()) {
+                    hash = (hash ^ packs.next().getId().hashCode()) * 0x100000001b3L;
+                }
+                packFingerprint = hash;
+                fingerprintSource = resourceManager;
+            }
+            return packFingerprint;
+        }
+    }
+
+    public static void setBudget(long bytes) {
+        synchronized (textures) {
+            budget = Math.max(1L << 20, bytes);
+            trim(null);
+        }
+    }
+
+    public static void clear() {
+        synchronized (textures) {
+            textures.clear();
+            sourceHashes.clear();
+            cachedBytes = 0;
+            fingerprintSource = null;
+            generation++;
+        }
+    }
+}
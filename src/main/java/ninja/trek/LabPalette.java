@@ -0,0 +1,65 @@
+package ninja.trek;
+
+import java.util.*;
+
+/**
+ * Immutable palette prepared for matching: sRGB colors as 0xRRGGBB next to their CIE Lab
+ * coordinates in flat float planes, plus the nearest-color index over them. Conversions
+ * happen once when the palette is loaded instead of on every comparison.
+ */
+public class LabPalette {
+    final int[] rgb;
+    final float[] labL;
+    final float[] labA;
+    final float[] labB;
+    private final long fingerprint;
+    private final PaletteKdTree index;
+
+    /**
+     * @param rgb palette colors as 0xRRGGBB, in palette order; the array is copied
+     */
+    public LabPalette(int[] rgb) {
+        this.rgb = new int[rgb.length];
+        this.labL = new float[rgb.length];
+        this.labA = new float[rgb.length];
+        this.labB = new float[rgb.length];
+        double[] lab = new double[3];
+        for (int i = 0; i < rgb.length; i++) {
+            this.rgb[i] = rgb[i] & 0xFFFFFF;
+            ImageProcessor.rgbToLab(this.rgb[i], lab);
+            labL[i] = (float) lab[0];
+            labA[i] = (float) lab[1];
+            labB[i] = (float) lab[2];
+        }
+        this.fingerprint = PaletteColorCache.fingerprint(this.rgb);
+        this.index = new PaletteKdTree(this);
+    }
+
+    public int size() {
+        return rgb.length;
+    }
+
+    public boolean isEmpty() {
+        return rgb.length == 0;
+    }
+
+    public int getColor(int index) {
+        return rgb[index];
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the index of the color closest to the given Lab color (CIE76), or -1 if empty.
+     * Ties go to the lowest index.
+     */
+    public int nearest(float l, float a, float b) {
+        return index.nearest(l, a, b);
+    }
+
+    boolean sameColors(LabPalette other) {
+        return this == other || (fingerprint == other.fingerprint && Arrays.equals(rgb, other.rgb));
+    }
+}
@@ -2,12 +2,20 @@ package ninja.trek;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
 import net.minecraft.util.Identifier;
 import java.util.*;
 
 public class LayerManager {
     private static final Gson GSON = new GsonBuilder()
             .excludeFieldsWithoutExposeAnnotation()
+            // Identifier has no exposed fields, store it as "namespace:path"
+            .registerTypeAdapter(Identifier.class, (JsonSerializer<Identifier>) (id, type, context) ->
+                    new JsonPrimitive(id.toString()))
+            .registerTypeAdapter(Identifier.class, (JsonDeserializer<Identifier>) (json, type, context) ->
+                    Identifier.of(json.getAsString()))
             .setPrettyPrinting()
             .create();
 
@@ -122,6 +130,10 @@ public class LayerManager {
 
             for (LayerInfo layer : importedLayers) {
                 layers.put(layer.getId(), layer);
+                // Saved assignments win over putting every texture in the active layer
+                if (!layer.getTextures().isEmpty()) {
+                    isInitialized = true;
+                }
             }
 
             if (layers.isEmpty()) {
@@ -0,0 +1,127 @@
+package ninja.trek;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Adjusted RGB -> palette index cache scoped to one palette. Entries are packed into a
+ * fixed-size open-addressing table of longs, so reads never lock or box, and any number of
+ * preview and export threads can share hits. Lookup tables for the same palette but
+ * different slider values share one cache, even across layers.
+ */
+public class PaletteColorCache {
+    public static final int MISS = -1;
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_ENTRIES = CAPACITY / 4 * 3;
+    private static final int MAX_PALETTES = 16;
+    private static final Map<Long, PaletteColorCache> caches = new LinkedHashMap<>(32, 0.75f, true);
+
+    private final int[] palette;
+    private final long fingerprint;
+    // Each slot holds (key + 1) << 32 | value, 0 marks an empty slot
+    private volatile AtomicLongArray slots = new AtomicLongArray(CAPACITY);
+    private final AtomicInteger size = new AtomicInteger();
+
+    private PaletteColorCache(int[] palette, long fingerprint) {
+        this.palette = palette;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the cache shared by every user of this palette (colors as 0xRRGGBB, in palette order).
+     */
+    public static PaletteColorCache forPalette(int[] palette) {
+        long fingerprint = fingerprint(palette);
+        synchronized (caches) {
+            PaletteColorCache cache = caches.get(fingerprint);
+            // A fingerprint collision just means the other palette loses its cache
+            if (cache == null || !Arrays.equals(cache.palette, palette)) {
+                cache = new PaletteColorCache(palette.clone(), fingerprint);
+                caches.put(fingerprint, cache);
+                if (caches.size() > MAX_PALETTES) {
+                    Iterator<Long> it = caches.keySet().iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+            return cache;
+        }
+    }
+
+    public static long fingerprint(int[] palette) {
+        long hash = 0xcbf29ce484222325L;
+        for (int color : palette) {
+            hash ^= color & 0xFFFFFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ palette.length;
+    }
+
+    public static void clearAll() {
+        synchronized (caches) {
+            caches.clear();
+        }
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the cached palette index for an adjusted 0xRRGGBB color, or {@link #MISS}.
+     */
+    public int get(int rgb) {
+        int key = rgb & 0xFFFFFF;
+        AtomicLongArray table = slots;
+        int slot = mix(key) & MASK;
+        while (true) {
+            long entry = table.get(slot);
+            if (entry == 0) {
+                return MISS;
+            }
+            if ((int) (entry >>> 32) == key + 1) {
+                return (int) entry;
+            }
+            slot = (slot + 1) & MASK;
+        }
+    }
+
+    public void put(int rgb, int index) {
+        int key = rgb & 0xFFFFFF;
+        if (size.get() >= MAX_ENTRIES) {
+            // Full: start over rather than let probe chains grow without bound
+            synchronized (this) {
+                if (size.get() >= MAX_ENTRIES) {
+                    slots = new AtomicLongArray(CAPACITY);
+                    size.set(0);
+                }
+            }
+        }
+
+        AtomicLongArray table = slots;
+        long entry = ((long) (key + 1) << 32) | (index & 0xFFFFFFFFL);
+        int slot = mix(key) & MASK;
+        while (true) {
+            long existing = table.get(slot);
+            if (existing == 0) {
+                if (table.compareAndSet(slot, 0, entry)) {
+                    size.incrementAndGet();
+                    return;
+                }
+                existing = table.get(slot);
+            }
+            if ((int) (existing >>> 32) == key + 1) {
+                return; // Someone else stored the same mapping
+            }
+            slot = (slot + 1) & MASK;
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,147 @@
+package ninja.trek;
+
+import java.util.*;
+
+/**
+ * Nearest-color index over a palette's Lab coordinates. Built once when a palette is loaded;
+ * queries return exactly what a linear scan in palette order would (first color with the
+ * smallest distance), but only visit a few nodes for palettes with hundreds of colors.
+ */
+class PaletteKdTree {
+    // Below this size a plain scan beats walking the tree
+    private static final int LINEAR_SCAN_SIZE = 32;
+    // With the Vector API a scan stays ahead of the tree for much larger palettes
+    private static final int VECTOR_SCAN_SIZE = 256;
+
+    private final float[] labL;
+    private final float[] labA;
+    private final float[] labB;
+    // Implicit balanced tree: the node for range [lo, hi) sits at (lo + hi) / 2
+    private final int[] order;
+    private final byte[] axis;
+
+    PaletteKdTree(LabPalette palette) {
+        this.labL = palette.labL;
+        this.labA = palette.labA;
+        this.labB = palette.labB;
+
+        int size = palette.size();
+        this.order = new int[size];
+        this.axis = new byte[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        if (size > LINEAR_SCAN_SIZE) {
+            build(0, size);
+        }
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1) {
+            return;
+        }
+
+        // Split on the axis with the widest spread
+        float[][] planes = {labL, labA, labB};
+        int splitAxis = 0;
+        float widest = -1;
+        for (int a = 0; a < 3; a++) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = lo; i < hi; i++) {
+                float v = planes[a][order[i]];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                splitAxis = a;
+            }
+        }
+
+        float[] plane = planes[splitAxis];
+        Integer[] range = new Integer[hi - lo];
+        for (int i = lo; i < hi; i++) {
+            range[i - lo] = order[i];
+        }
+        Arrays.sort(range, Comparator.comparingDouble(i -> plane[i]));
+        for (int i = lo; i < hi; i++) {
+            order[i] = range[i - lo];
+        }
+
+        int mid = (lo + hi) >>> 1;
+        axis[mid] = (byte) splitAxis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    int nearest(float l, float a, float b) {
+        if (order.length <= LINEAR_SCAN_SIZE
+                || (order.length <= VECTOR_SCAN_SIZE && VectorPaletteKernel.isAvailable())) {
+            return nearestLinear(l, a, b);
+        }
+        return nearestTree(l, a, b);
+    }
+
+    int nearestTree(float l, float a, float b) {
+        return search(0, order.length, l, a, b, -1);
+    }
+
+    int nearestLinear(float l, float a, float b) {
+        if (VectorPaletteKernel.isAvailable()) {
+            return VectorPaletteKernel.nearest(labL, labA, labB, l, a, b);
+        }
+        return nearestScalar(l, a, b);
+    }
+
+    int nearestScalar(float l, float a, float b) {
+        int closest = -1;
+        float minDistance = Float.MAX_VALUE;
+        for (int i = 0; i < labL.length; i++) {
+            float distance = distance(i, l, a, b);
+            if (distance < minDistance) {
+                minDistance = distance;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+
+    private int search(int lo, int hi, float l, float a, float b, int best) {
+        if (lo >= hi) {
+            return best;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        int current = order[mid];
+        float distance = distance(current, l, a, b);
+        float bestDistance = best < 0 ? Float.MAX_VALUE : distance(best, l, a, b);
+        // Ties go to the lower palette index, like the linear scan
+        if (distance < bestDistance || (distance == bestDistance && current < best)) {
+            best = current;
+        }
+
+        float diff;
+        switch (axis[mid]) {
+            case 0 -> diff = l - labL[current];
+            case 1 -> diff = a - labA[current];
+            default -> diff = b - labB[current];
+        }
+
+        boolean leftFirst = diff < 0;
+        best = leftFirst ? search(lo, mid, l, a, b, best) : search(mid + 1, hi, l, a, b, best);
+        bestDistance = distance(best, l, a, b);
+        // Equal distances still have to be visited, the far side may hold a lower index
+        if (diff * diff <= bestDistance) {
+            best = leftFirst ? search(mid + 1, hi, l, a, b, best) : search(lo, mid, l, a, b, best);
+        }
+        return best;
+    }
+
+    private float distance(int index, float l, float a, float b) {
+        float deltaL = l - labL[index];
+        float deltaA = a - labA[index];
+        float deltaB = b - labB[index];
+        return deltaL * deltaL + deltaA * deltaA + deltaB * deltaB;
+    }
+}
@@ -0,0 +1,163 @@
+package ninja.trek;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dense source RGB -> final palette color table for one palette and {@link ColorAdjustment}.
+ * The layer's adjustment and the nearest-color search are both folded in when an entry is
+ * filled, so recoloring a pixel is a single array load. The 24-bit RGB cube is split into
+ * 8x8x8 tiles which are filled on first touch, so a texture only pays for the part of the
+ * cube it actually uses.
+ */
+public class PaletteLookupTable {
+    private static final int TILE_BITS = 3;
+    private static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int TILES_PER_AXIS = 256 >> TILE_BITS;
+    private static final int TILE_ENTRIES = TILE_SIZE * TILE_SIZE * TILE_SIZE;
+
+    // Tables are shared between the preview and the exporter; the budget is in filled tiles (2 KiB each)
+    private static final int MAX_TABLES = 8;
+    private static final int MAX_FILLED_TILES = 8192;
+    // Tiles are filled outside the map lock, so the shared budget is rechecked every so many fills
+    private static final int TRIM_INTERVAL = 256;
+    private static final AtomicInteger fillsSinceTrim = new AtomicInteger();
+    private static final Map<TableKey, PaletteLookupTable> tables = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static class TableKey {
+        private final LabPalette palette;
+        private final ColorAdjustment adjustment;
+
+        TableKey(LabPalette palette, ColorAdjustment adjustment) {
+            this.palette = palette;
+            this.adjustment = adjustment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TableKey other = (TableKey) o;
+            return adjustment.equals(other.adjustment) && palette.sameColors(other.palette);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(palette.getFingerprint(), adjustment);
+        }
+    }
+
+    private final LabPalette palette;
+    private final ColorAdjustment adjustment;
+    private final PaletteColorCache colorCache;
+    private final AtomicReferenceArray<int[]> tiles =
+            new AtomicReferenceArray<>(TILES_PER_AXIS * TILES_PER_AXIS * TILES_PER_AXIS);
+    private final AtomicInteger filledTiles = new AtomicInteger();
+
+    private PaletteLookupTable(LabPalette palette, ColorAdjustment adjustment) {
+        this.palette = palette;
+        this.adjustment = adjustment;
+        this.colorCache = PaletteColorCache.forPalette(palette.rgb);
+    }
+
+    /**
+     * Returns the shared table for the given palette and adjustment, creating it if needed.
+     */
+    public static PaletteLookupTable get(LabPalette palette, ColorAdjustment adjustment) {
+        TableKey key = new TableKey(palette, adjustment);
+        synchronized (tables) {
+            PaletteLookupTable table = tables.get(key);
+            if (table == null) {
+                table = new PaletteLookupTable(palette, adjustment);
+                tables.put(key, table);
+            }
+            trimTables(table);
+            return table;
+        }
+    }
+
+    // Drops least recently used tables until we are back under budget, never evicting the one just requested
+    private static void trimTables(PaletteLookupTable keep) {
+        // A table that was already evicted can still be filling through a caller's reference
+        int filled = tables.containsValue(keep) ? 0 : keep.filledTiles.get();
+        for (PaletteLookupTable table : tables.values()) {
+            filled += table.filledTiles.get();
+        }
+        Iterator<PaletteLookupTable> it = tables.values().iterator();
+        while (it.hasNext() && (tables.size() > MAX_TABLES || filled > MAX_FILLED_TILES)) {
+            PaletteLookupTable table = it.next();
+            if (table != keep) {
+                filled -= table.filledTiles.get();
+                it.remove();
+            }
+        }
+        // A single table that outgrows the whole budget starts over instead of growing further
+        if (filled > MAX_FILLED_TILES) {
+            keep.clearTiles();
+        }
+    }
+
+    private void clearTiles() {
+        for (int i = 0; i < tiles.length(); i++) {
+            if (tiles.getAndSet(i, null) != null) {
+                filledTiles.decrementAndGet();
+            }
+        }
+    }
+
+    public static void clear() {
+        synchronized (tables) {
+            tables.clear();
+        }
+    }
+
+    /**
+     * Maps a source color (alpha ignored) to its final palette color as 0xRRGGBB.
+     */
+    public int lookup(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int tileIndex = ((r >> TILE_BITS) * TILES_PER_AXIS + (g >> TILE_BITS)) * TILES_PER_AXIS + (b >> TILE_BITS);
+        int[] tile = tiles.get(tileIndex);
+        if (tile == null) {
+            tile = fillTile(tileIndex, r & ~TILE_MASK, g & ~TILE_MASK, b & ~TILE_MASK);
+        }
+        return tile[((r & TILE_MASK) << (2 * TILE_BITS)) | ((g & TILE_MASK) << TILE_BITS) | (b & TILE_MASK)];
+    }
+
+    private int[] fillTile(int tileIndex, int baseR, int baseG, int baseB) {
+        int[] tile = new int[TILE_ENTRIES];
+        float[] hsb = new float[3];
+        double[] lab = new double[3];
+        int i = 0;
+        for (int r = baseR; r < baseR + TILE_SIZE; r++) {
+            for (int g = baseG; g < baseG + TILE_SIZE; g++) {
+                for (int b = baseB; b < baseB + TILE_SIZE; b++) {
+                    int adjusted = adjustment.apply((r << 16) | (g << 8) | b, hsb);
+                    int index = colorCache.get(adjusted);
+                    if (index == PaletteColorCache.MISS) {
+                        ImageProcessor.rgbToLab(adjusted, lab);
+                        index = palette.nearest((float) lab[0], (float) lab[1], (float) lab[2]);
+                        colorCache.put(adjusted, index);
+                    }
+                    tile[i++] = palette.rgb[index];
+                }
+            }
+        }
+        // Another thread may have filled the same tile meanwhile; both results are identical
+        if (tiles.compareAndSet(tileIndex, null, tile)) {
+            if (filledTiles.incrementAndGet() > MAX_FILLED_TILES
+                    || fillsSinceTrim.incrementAndGet() >= TRIM_INTERVAL) {
+                fillsSinceTrim.set(0);
+                synchronized (tables) {
+                    trimTables(this);
+                }
+            }
+            return tile;
+        }
+        return tiles.get(tileIndex);
+    }
+}
@@ -0,0 +1,369 @@
+package ninja.trek;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes PNGs straight to packed ARGB pixels, without ImageIO or any AWT classes. Handles every
+ * color type (gray, RGB, palette, gray with alpha, RGBA) at every bit depth the format allows,
+ * tRNS transparency and Adam7 interlacing; 16-bit samples are reduced to their high byte and
+ * ancillary chunks such as gamma and color profiles are ignored. IDAT data is inflated in place
+ * from the input with a per-thread Inflater.
+ *
+ * <p>Results match ImageIO.read(...).getRGB except for grayscale images: ImageIO treats their
+ * samples as linear and converts them to sRGB, which brightens mid tones, while here a gray
+ * sample v simply becomes (v, v, v), the way Minecraft's own texture loader reads it.
+ */
+public class PngDecoder {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // Textures far beyond anything a resource pack would ship are rejected before allocating
+    private static final long MAX_PIXELS = 1L << 26;
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    // Adam7 pass origins and steps; a non-interlaced image is a single pass covering everything
+    private static final int[][] ADAM7 = {
+            {0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}
+    };
+    private static final int[][] SINGLE_PASS = {{0, 0, 1, 1}};
+
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    public static final class Image {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+
+        Image(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        // Packed ARGB, row by row
+        public int[] getPixels() {
+            return pixels;
+        }
+    }
+
+    public static Image decode(byte[] png) throws IOException {
+        if (png.length < SIGNATURE.length + 25) {
+            throw new IOException("Not a PNG");
+        }
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (png[i] != SIGNATURE[i]) {
+                throw new IOException("Not a PNG");
+            }
+        }
+
+        int width = 0;
+        int height = 0;
+        int depth = 0;
+        int colorType = 0;
+        boolean interlaced = false;
+        int channels = 0;
+        int[] palette = null;
+        int[] transparentSample = null;
+        byte[] raw = null;
+        int rawLength = 0;
+        boolean seenHeader = false;
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        int p = SIGNATURE.length;
+        chunks:
+        while (true) {
+            if (p + 8 > png.length) {
+                throw new IOException("Truncated PNG");
+            }
+            int length = readInt(png, p);
+            int type = readInt(png, p + 4);
+            int data = p + 8;
+            if (length < 0 || (long) data + length + 4 > png.length) {
+                throw new IOException("Truncated PNG");
+            }
+
+            switch (type) {
+                case 0x49484452 -> { // IHDR
+                    if (length < 13) {
+                        throw new IOException("Bad IHDR");
+                    }
+                    width = readInt(png, data);
+                    height = readInt(png, data + 4);
+                    depth = png[data + 8] & 0xFF;
+                    colorType = png[data + 9] & 0xFF;
+                    interlaced = png[data + 12] != 0;
+                    channels = switch (colorType) {
+                        case COLOR_GRAY, COLOR_PALETTE -> 1;
+                        case COLOR_GRAY_ALPHA -> 2;
+                        case COLOR_RGB -> 3;
+                        case COLOR_RGBA -> 4;
+                        default -> throw new IOException("Bad color type " + colorType);
+                    };
+                    if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+                        throw new IOException("Bad PNG size " + width + "x" + height);
+                    }
+                    if (!validDepth(colorType, depth)) {
+                        throw new IOException("Bad bit depth " + depth + " for color type " + colorType);
+                    }
+                    raw = new byte[rawSize(width, height, channels * depth, interlaced)];
+                    seenHeader = true;
+                }
+                case 0x504C5445 -> { // PLTE
+                    palette = new int[length / 3];
+                    for (int i = 0; i < palette.length; i++) {
+                        int o = data + i * 3;
+                        palette[i] = 0xFF000000 | (png[o] & 0xFF) << 16 | (png[o + 1] & 0xFF) << 8 | (png[o + 2] & 0xFF);
+                    }
+                }
+                case 0x74524E53 -> { // tRNS
+                    if (colorType == COLOR_PALETTE) {
+                        if (palette == null) {
+                            throw new IOException("tRNS before PLTE");
+                        }
+                        for (int i = 0; i < Math.min(length, palette.length); i++) {
+                            palette[i] = (png[data + i] & 0xFF) << 24 | (palette[i] & 0xFFFFFF);
+                        }
+                    } else if (colorType == COLOR_GRAY && length >= 2) {
+                        transparentSample = new int[]{readShort(png, data)};
+                    } else if (colorType == COLOR_RGB && length >= 6) {
+                        transparentSample = new int[]{
+                                readShort(png, data), readShort(png, data + 2), readShort(png, data + 4)};
+                    }
+                }
+                case 0x49444154 -> { // IDAT
+                    if (!seenHeader) {
+                        throw new IOException("IDAT before IHDR");
+                    }
+                    inflater.setInput(png, data, length);
+                    try {
+                        while (rawLength < raw.length && !inflater.needsInput() && !inflater.finished()) {
+                            int n = inflater.inflate(raw, rawLength, raw.length - rawLength);
+                            if (n == 0 && inflater.needsDictionary()) {
+                                throw new IOException("Bad image data");
+                            }
+                            rawLength += n;
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Bad image data", e);
+                    }
+                }
+                case 0x49454E44 -> { // IEND
+                    break chunks;
+                }
+                default -> {
+                    // Ancillary chunks are skipped; unknown critical ones mean we can't decode this
+                    if ((png[p + 4] & 0x20) == 0) {
+                        throw new IOException("Unsupported critical chunk");
+                    }
+                }
+            }
+            p = data + length + 4; // Skips the CRC
+        }
+
+        if (!seenHeader) {
+            throw new IOException("Missing IHDR");
+        }
+        if (rawLength < raw.length) {
+            throw new IOException("Truncated image data");
+        }
+        if (colorType == COLOR_PALETTE && palette == null) {
+            throw new IOException("Missing PLTE");
+        }
+
+        int bitsPerPixel = channels * depth;
+        // Distance to the corresponding byte of the previous pixel, for filtering
+        int filterStride = Math.max(1, bitsPerPixel / 8);
+        int[] pixels = new int[width * height];
+        int offset = 0;
+        for (int[] pass : interlaced ? ADAM7 : SINGLE_PASS) {
+            int passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+            int passHeight = (height - pass[1] + pass[3] - 1) / pass[3];
+            if (passWidth <= 0 || passHeight <= 0) {
+                continue;
+            }
+            int rowBytes = (passWidth * bitsPerPixel + 7) / 8;
+            for (int y = 0; y < passHeight; y++) {
+                int row = offset + 1;
+                unfilter(raw, raw[offset] & 0xFF, row, y > 0 ? row - rowBytes - 1 : -1, rowBytes, filterStride);
+                int outRow = (pass[1] + y * pass[3]) * width;
+                convertRow(raw, row, passWidth, colorType, depth, channels, palette, transparentSample,
+                        pixels, outRow + pass[0], pass[2]);
+                offset += rowBytes + 1;
+            }
+        }
+        return new Image(width, height, pixels);
+    }
+
+    private static boolean validDepth(int colorType, int depth) {
+        return switch (colorType) {
+            case COLOR_GRAY -> depth == 1 || depth == 2 || depth == 4 || depth == 8 || depth == 16;
+            case COLOR_PALETTE -> depth == 1 || depth == 2 || depth == 4 || depth == 8;
+            default -> depth == 8 || depth == 16;
+        };
+    }
+
+    private static int rawSize(int width, int height, int bitsPerPixel, boolean interlaced) throws IOException {
+        long size = 0;
+        for (int[] pass : interlaced ? ADAM7 : SINGLE_PASS) {
+            long passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+            long passHeight = (height - pass[1] + pass[3] - 1) / pass[3];
+            if (passWidth > 0 && passHeight > 0) {
+                size += passHeight * ((passWidth * bitsPerPixel + 7) / 8 + 1);
+            }
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("PNG too large");
+        }
+        return (int) size;
+    }
+
+    // Reverses the row filter in place; prior is the start of the previous, already unfiltered row, or -1
+    private static void unfilter(byte[] raw, int filter, int row, int prior, int rowBytes, int stride)
+            throws IOException {
+        switch (filter) {
+            case 0 -> {
+            }
+            case 1 -> {
+                for (int i = stride; i < rowBytes; i++) {
+                    raw[row + i] += raw[row + i - stride];
+                }
+            }
+            case 2 -> {
+                if (prior >= 0) {
+                    for (int i = 0; i < rowBytes; i++) {
+                        raw[row + i] += raw[prior + i];
+                    }
+                }
+            }
+            case 3 -> {
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= stride ? raw[row + i - stride] & 0xFF : 0;
+                    int b = prior >= 0 ? raw[prior + i] & 0xFF : 0;
+                    raw[row + i] += (byte) ((a + b) >> 1);
+                }
+            }
+            case 4 -> {
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= stride ? raw[row + i - stride] & 0xFF : 0;
+                    int b = prior >= 0 ? raw[prior + i] & 0xFF : 0;
+                    int c = i >= stride && prior >= 0 ? raw[prior + i - stride] & 0xFF : 0;
+                    raw[row + i] += (byte) paethPredictor(a, b, c);
+                }
+            }
+            default -> throw new IOException("Bad filter type " + filter);
+        }
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    private static void convertRow(byte[] raw, int row, int count, int colorType, int depth, int channels,
+                                   int[] palette, int[] transparent, int[] out, int start, int step) {
+        // The usual 8-bit cases read bytes directly
+        if (depth == 8 && colorType == COLOR_RGBA) {
+            for (int x = 0, i = row, o = start; x < count; x++, i += 4, o += step) {
+                out[o] = (raw[i + 3] & 0xFF) << 24 | (raw[i] & 0xFF) << 16 | (raw[i + 1] & 0xFF) << 8 | (raw[i + 2] & 0xFF);
+            }
+            return;
+        }
+        if (depth == 8 && colorType == COLOR_RGB && transparent == null) {
+            for (int x = 0, i = row, o = start; x < count; x++, i += 3, o += step) {
+                out[o] = 0xFF000000 | (raw[i] & 0xFF) << 16 | (raw[i + 1] & 0xFF) << 8 | (raw[i + 2] & 0xFF);
+            }
+            return;
+        }
+        if (depth == 8 && colorType == COLOR_PALETTE) {
+            for (int x = 0, o = start; x < count; x++, o += step) {
+                out[o] = paletteColor(palette, raw[row + x] & 0xFF);
+            }
+            return;
+        }
+
+        int max = (1 << depth) - 1;
+        for (int x = 0, o = start; x < count; x++, o += step) {
+            int s = x * channels;
+            int argb;
+            switch (colorType) {
+                case COLOR_GRAY -> {
+                    int gray = sample(raw, row, s, depth);
+                    int alpha = transparent != null && gray == transparent[0] ? 0 : 0xFF;
+                    int value = to8Bit(gray, depth, max);
+                    argb = alpha << 24 | value << 16 | value << 8 | value;
+                }
+                case COLOR_RGB -> {
+                    int r = sample(raw, row, s, depth);
+                    int g = sample(raw, row, s + 1, depth);
+                    int b = sample(raw, row, s + 2, depth);
+                    boolean clear = transparent != null
+                            && r == transparent[0] && g == transparent[1] && b == transparent[2];
+                    argb = (clear ? 0 : 0xFF000000)
+                            | to8Bit(r, depth, max) << 16 | to8Bit(g, depth, max) << 8 | to8Bit(b, depth, max);
+                }
+                case COLOR_PALETTE -> argb = paletteColor(palette, sample(raw, row, s, depth));
+                case COLOR_GRAY_ALPHA -> {
+                    int value = to8Bit(sample(raw, row, s, depth), depth, max);
+                    int alpha = to8Bit(sample(raw, row, s + 1, depth), depth, max);
+                    argb = alpha << 24 | value << 16 | value << 8 | value;
+                }
+                default -> argb = to8Bit(sample(raw, row, s + 3, depth), depth, max) << 24
+                        | to8Bit(sample(raw, row, s, depth), depth, max) << 16
+                        | to8Bit(sample(raw, row, s + 1, depth), depth, max) << 8
+                        | to8Bit(sample(raw, row, s + 2, depth), depth, max);
+            }
+            out[o] = argb;
+        }
+    }
+
+    // Returns the index-th sample of a row at its original bit depth
+    private static int sample(byte[] raw, int row, int index, int depth) {
+        switch (depth) {
+            case 8:
+                return raw[row + index] & 0xFF;
+            case 16:
+                return (raw[row + index * 2] & 0xFF) << 8 | (raw[row + index * 2 + 1] & 0xFF);
+            default:
+                int bit = index * depth;
+                return (raw[row + (bit >> 3)] >> (8 - depth - (bit & 7))) & ((1 << depth) - 1);
+        }
+    }
+
+    private static int to8Bit(int value, int depth, int max) {
+        if (depth == 8) return value;
+        if (depth == 16) return value >> 8;
+        return value * 255 / max;
+    }
+
+    // Out of range indices are an error in the file; they come out opaque black like in most decoders
+    private static int paletteColor(int[] palette, int index) {
+        return index < palette.length ? palette[index] : 0xFF000000;
+    }
+
+    private static int readInt(byte[] b, int o) {
+        return (b[o] & 0xFF) << 24 | (b[o + 1] & 0xFF) << 16 | (b[o + 2] & 0xFF) << 8 | (b[o + 3] & 0xFF);
+    }
+
+    private static int readShort(byte[] b, int o) {
+        return (b[o] & 0xFF) << 8 | (b[o + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,279 @@
+package ninja.trek;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PNGs straight from packed ARGB pixels or an {@link IndexedTexture}, without going through
+ * ImageIO. Truecolor rows get whichever of the five PNG filters gives the smallest sum of absolute
+ * differences (the heuristic libpng uses), palette images are left unfiltered as the spec
+ * recommends, and the image data goes out as a single IDAT chunk. The Deflater and all scratch
+ * buffers are kept per thread, so export workers don't allocate them for every texture.
+ */
+public class PngEncoder {
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_RGBA = 6;
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private static class Scratch {
+        private final Deflater deflater = new Deflater();
+        private final CRC32 crc = new CRC32();
+        private byte[] raw = new byte[0];
+        private byte[] previous = new byte[0];
+        private byte[] current = new byte[0];
+        private final byte[][] candidates = new byte[5][0];
+        private byte[] compressed = new byte[16 << 10];
+
+        void ensureRow(int rowBytes) {
+            if (current.length < rowBytes) {
+                previous = new byte[rowBytes];
+                current = new byte[rowBytes];
+                for (int i = 0; i < candidates.length; i++) {
+                    candidates[i] = new byte[rowBytes];
+                }
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Encodes width x height packed ARGB pixels as RGB, or RGBA if any pixel isn't opaque.
+     *
+     * @param level zlib compression level, 0 to 9
+     */
+    public static byte[] encode(int[] argb, int width, int height, int level) {
+        boolean alpha = false;
+        for (int i = 0; i < width * height; i++) {
+            if ((argb[i] >>> 24) != 0xFF) {
+                alpha = true;
+                break;
+            }
+        }
+        int bytesPerPixel = alpha ? 4 : 3;
+        int rowBytes = width * bytesPerPixel;
+
+        Scratch scratch = SCRATCH.get();
+        scratch.ensureRow(rowBytes);
+        byte[] raw = rawBuffer(scratch, height * (rowBytes + 1));
+        // Filtering only pays off when the result is actually compressed
+        boolean filter = level > 0;
+        Arrays.fill(scratch.previous, 0, rowBytes, (byte) 0);
+
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            byte[] row = scratch.current;
+            int p = y * width;
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int color = argb[p + x];
+                row[i++] = (byte) (color >> 16);
+                row[i++] = (byte) (color >> 8);
+                row[i++] = (byte) color;
+                if (alpha) {
+                    row[i++] = (byte) (color >>> 24);
+                }
+            }
+
+            if (filter) {
+                int type = chooseFilter(scratch, rowBytes, bytesPerPixel);
+                raw[out++] = (byte) type;
+                System.arraycopy(scratch.candidates[type], 0, raw, out, rowBytes);
+            } else {
+                raw[out++] = FILTER_NONE;
+                System.arraycopy(row, 0, raw, out, rowBytes);
+            }
+            out += rowBytes;
+
+            scratch.current = scratch.previous;
+            scratch.previous = row;
+        }
+
+        byte[] header = header(width, height, 8, alpha ? COLOR_RGBA : COLOR_RGB);
+        return write(scratch, header, null, null, raw, out, level, filter);
+    }
+
+    /**
+     * Encodes a texture with at most 256 colors as a palette PNG at the smallest bit depth that
+     * holds them, with a tRNS chunk for translucent colors. Returns null if it has more colors.
+     */
+    public static byte[] encode(IndexedTexture texture, int level) {
+        byte[] indices = texture.getByteIndices();
+        if (indices == null) {
+            return null;
+        }
+        int width = texture.getWidth();
+        int height = texture.getHeight();
+        int[] colors = texture.getColors();
+        int bits = colors.length <= 2 ? 1 : colors.length <= 4 ? 2 : colors.length <= 16 ? 4 : 8;
+        int rowBytes = (width * bits + 7) / 8;
+        int perByte = 8 / bits;
+
+        Scratch scratch = SCRATCH.get();
+        byte[] raw = rawBuffer(scratch, height * (rowBytes + 1));
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            raw[out++] = FILTER_NONE;
+            int p = y * width;
+            if (bits == 8) {
+                System.arraycopy(indices, p, raw, out, width);
+            } else {
+                // Packed from the most significant bits down
+                Arrays.fill(raw, out, out + rowBytes, (byte) 0);
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bits * (x % perByte + 1);
+                    raw[out + x / perByte] |= (byte) ((indices[p + x] & 0xFF) << shift);
+                }
+            }
+            out += rowBytes;
+        }
+
+        byte[] palette = new byte[colors.length * 3];
+        // tRNS only needs to cover up to the last translucent entry
+        int alphaCount = 0;
+        for (int i = 0; i < colors.length; i++) {
+            palette[i * 3] = (byte) (colors[i] >> 16);
+            palette[i * 3 + 1] = (byte) (colors[i] >> 8);
+            palette[i * 3 + 2] = (byte) colors[i];
+            if ((colors[i] >>> 24) != 0xFF) {
+                alphaCount = i + 1;
+            }
+        }
+        byte[] transparency = null;
+        if (alphaCount > 0) {
+            transparency = new byte[alphaCount];
+            for (int i = 0; i < alphaCount; i++) {
+                transparency[i] = (byte) (colors[i] >>> 24);
+            }
+        }
+
+        byte[] header = header(width, height, bits, COLOR_PALETTE);
+        return write(scratch, header, palette, transparency, raw, out, level, false);
+    }
+
+    // Filters the current row every way and returns the type whose output has the smallest sum of absolute values
+    private static int chooseFilter(Scratch scratch, int rowBytes, int bpp) {
+        byte[] row = scratch.current;
+        byte[] prev = scratch.previous;
+        byte[] none = scratch.candidates[FILTER_NONE];
+        byte[] sub = scratch.candidates[FILTER_SUB];
+        byte[] up = scratch.candidates[FILTER_UP];
+        byte[] average = scratch.candidates[FILTER_AVERAGE];
+        byte[] paeth = scratch.candidates[FILTER_PAETH];
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+
+        for (int i = 0; i < rowBytes; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+
+            none[i] = (byte) x;
+            sub[i] = (byte) (x - a);
+            up[i] = (byte) (x - b);
+            average[i] = (byte) (x - ((a + b) >> 1));
+            paeth[i] = (byte) (x - paethPredictor(a, b, c));
+
+            sumNone += Math.abs(none[i]);
+            sumSub += Math.abs(sub[i]);
+            sumUp += Math.abs(up[i]);
+            sumAverage += Math.abs(average[i]);
+            sumPaeth += Math.abs(paeth[i]);
+        }
+
+        int best = FILTER_NONE;
+        long bestSum = sumNone;
+        if (sumSub < bestSum) { best = FILTER_SUB; bestSum = sumSub; }
+        if (sumUp < bestSum) { best = FILTER_UP; bestSum = sumUp; }
+        if (sumAverage < bestSum) { best = FILTER_AVERAGE; bestSum = sumAverage; }
+        if (sumPaeth < bestSum) { best = FILTER_PAETH; }
+        return best;
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    private static byte[] rawBuffer(Scratch scratch, int size) {
+        if (scratch.raw.length < size) {
+            scratch.raw = new byte[size];
+        }
+        return scratch.raw;
+    }
+
+    private static byte[] header(int width, int height, int bitDepth, int colorType) {
+        return ByteBuffer.allocate(13)
+                .putInt(width)
+                .putInt(height)
+                .put((byte) bitDepth)
+                .put((byte) colorType)
+                .put((byte) 0) // Deflate
+                .put((byte) 0) // Adaptive filtering
+                .put((byte) 0) // No interlace
+                .array();
+    }
+
+    private static byte[] write(Scratch scratch, byte[] header, byte[] palette, byte[] transparency,
+                                byte[] raw, int rawLength, int level, boolean filtered) {
+        Deflater deflater = scratch.deflater;
+        deflater.reset();
+        deflater.setLevel(Math.max(0, Math.min(9, level)));
+        // zlib's tuning for filtered image rows, as libpng uses
+        deflater.setStrategy(filtered ? Deflater.FILTERED : Deflater.DEFAULT_STRATEGY);
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == scratch.compressed.length) {
+                scratch.compressed = Arrays.copyOf(scratch.compressed, scratch.compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(scratch.compressed, compressedLength,
+                    scratch.compressed.length - compressedLength);
+        }
+
+        int size = SIGNATURE.length + chunkSize(header.length) + chunkSize(compressedLength) + chunkSize(0);
+        if (palette != null) size += chunkSize(palette.length);
+        if (transparency != null) size += chunkSize(transparency.length);
+
+        ByteBuffer png = ByteBuffer.allocate(size);
+        png.put(SIGNATURE);
+        putChunk(png, scratch.crc, "IHDR", header, header.length);
+        if (palette != null) putChunk(png, scratch.crc, "PLTE", palette, palette.length);
+        if (transparency != null) putChunk(png, scratch.crc, "tRNS", transparency, transparency.length);
+        putChunk(png, scratch.crc, "IDAT", scratch.compressed, compressedLength);
+        putChunk(png, scratch.crc, "IEND", new byte[0], 0);
+        return png.array();
+    }
+
+    private static int chunkSize(int dataLength) {
+        return 12 + dataLength;
+    }
+
+    private static void putChunk(ByteBuffer png, CRC32 crc, String type, byte[] data, int length) {
+        png.putInt(length);
+        int typeStart = png.position();
+        for (int i = 0; i < 4; i++) {
+            png.put((byte) type.charAt(i));
+        }
+        png.put(data, 0, length);
+        crc.reset();
+        crc.update(png.array(), typeStart, 4 + length);
+        png.putInt((int) crc.getValue());
+    }
+}
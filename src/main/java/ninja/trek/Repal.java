@@ -4,6 +4,7 @@ import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
 import net.minecraft.resource.ResourceType;
 import net.minecraft.util.Identifier;
+import ninja.trek.config.RepalConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,11 +24,28 @@ public class Repal implements ModInitializer {
 	private static int preContrast = 0;
 	private static int preSaturation = 0;
 	private static String packName = "repal";
+	// Write exported textures as palette-indexed PNGs when they have at most 256 colors
+	private static boolean indexedPngOutput = true;
+	// zlib level for exported PNGs, 0 (fastest) to 9 (smallest)
+	private static int pngCompressionLevel = PngEncoder.DEFAULT_COMPRESSION_LEVEL;
+	// Write the pack as resourcepacks/<pack>.zip instead of a loose directory
+	private static boolean zipPackOutput = false;
+	// Store zip entries uncompressed; PNGs barely deflate further and this is the fastest export
+	private static boolean zipStoreEntries = false;
+	// Upper bound on the memory processed previews occupy in the preview atlas (4 bytes per texel)
+	public static final long DEFAULT_PREVIEW_CACHE_BUDGET = 64L << 20;
+	private static long previewCacheBudget = DEFAULT_PREVIEW_CACHE_BUDGET;
+	// Size cap for processed previews persisted under the config directory between sessions
+	public static final long DEFAULT_PREVIEW_DISK_CACHE_BUDGET = 32L << 20;
+	private static long previewDiskCacheBudget = DEFAULT_PREVIEW_DISK_CACHE_BUDGET;
 
 	@Override
 	public void onInitialize() {
 		LOGGER.info("Initializing Repal");
 
+		// Applies saved settings and layers before anything reads them
+		RepalConfig.load();
+
 		// Register the resource reload listener
 		ResourceManagerHelper.get(ResourceType.CLIENT_RESOURCES)
 				.registerReloadListener(new RepalResourceReloadListener());
@@ -66,4 +84,53 @@ public class Repal implements ModInitializer {
 	public static void setPackName(String name) {
 		packName = (name == null || name.trim().isEmpty()) ? "repal" : name.trim();
 	}
+
+	public static boolean isIndexedPngOutput() {
+		return indexedPngOutput;
+	}
+
+	public static void setIndexedPngOutput(boolean indexed) {
+		indexedPngOutput = indexed;
+	}
+
+	public static int getPngCompressionLevel() {
+		return pngCompressionLevel;
+	}
+
+	public static void setPngCompressionLevel(int level) {
+		pngCompressionLevel = Math.max(0, Math.min(9, level));
+	}
+
+	public static boolean isZipPackOutput() {
+		return zipPackOutput;
+	}
+
+	public static void setZipPackOutput(boolean zip) {
+		zipPackOutput = zip;
+	}
+
+	public static boolean isZipStoreEntries() {
+		return zipStoreEntries;
+	}
+
+	public static void setZipStoreEntries(boolean store) {
+		zipStoreEntries = store;
+	}
+
+	public static long getPreviewCacheBudget() {
+		return previewCacheBudget;
+	}
+
+	public static void setPreviewCacheBudget(long bytes) {
+		previewCacheBudget = Math.max(1L << 20, bytes);
+	}
+
+	public static long getPreviewDiskCacheBudget() {
+		return previewDiskCacheBudget;
+	}
+
+	// Zero disables the disk cache
+	public static void setPreviewDiskCacheBudget(long bytes) {
+		previewDiskCacheBudget = Math.max(0, bytes);
+	}
 }
\ No newline at end of file
@@ -4,16 +4,14 @@ import net.fabricmc.fabric.api.resource.SimpleSynchronousResourceReloadListener;
 import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.resource.ResourceManager;
 import net.minecraft.util.Identifier;
-import java.awt.Color;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 import java.io.InputStream;
 import java.nio.file.*;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class RepalResourceReloadListener implements SimpleSynchronousResourceReloadListener {
-    private static final Map<String, List<Color>> paletteColors = new HashMap<>();
+    // The single copy of every loaded palette, as packed colors ready for matching
+    private static final Map<String, LabPalette> labPalettes = new HashMap<>();
     private static final List<PaletteInfo> availablePalettes = new ArrayList<>();
     private static final Identifier PALETTE_1 = Identifier.of("repal", "textures/palette/pal1.png");
     private static final Identifier PALETTE_2 = Identifier.of("repal", "textures/palette/pal2.png");
@@ -27,20 +25,10 @@ public class RepalResourceReloadListener implements SimpleSynchronousResourceRel
         try {
             manager.getResource(paletteId).ifPresent(resource -> {
                 try (InputStream stream = resource.getInputStream()) {
-                    BufferedImage image = ImageIO.read(stream);
-                    Set<Color> uniqueColors = new HashSet<>();
-                    for (int y = 0; y < image.getHeight(); y++) {
-                        for (int x = 0; x < image.getWidth(); x++) {
-                            Color color = new Color(image.getRGB(x, y), true);
-                            if (color.getAlpha() == 255) {
-                                uniqueColors.add(color);
-                            }
-                        }
-                    }
-                    List<Color> colors = new ArrayList<>(uniqueColors);
-                    paletteColors.put(paletteName, colors);
+                    LabPalette palette = new LabPalette(getOpaqueColors(PngDecoder.decode(stream.readAllBytes())));
+                    labPalettes.put(paletteName, palette);
                     availablePalettes.add(new PaletteInfo(paletteName, null, true));
-                    Repal.LOGGER.info("Loaded {} colors from palette {}", uniqueColors.size(), paletteId);
+                    Repal.LOGGER.info("Loaded {} colors from palette {}", palette.size(), paletteId);
                 } catch (Exception e) {
                     Repal.LOGGER.error("Failed to load palette {}", paletteId, e);
                 }
@@ -71,57 +59,61 @@ public class RepalResourceReloadListener implements SimpleSynchronousResourceRel
 
     private void loadCustomPalette(Path path, String name) {
         try {
-            BufferedImage image = ImageIO.read(path.toFile());
-            Set<Color> uniqueColors = new HashSet<>();
-
-            for (int y = 0; y < image.getHeight(); y++) {
-                for (int x = 0; x < image.getWidth(); x++) {
-                    Color color = new Color(image.getRGB(x, y), true);
-                    if (color.getAlpha() == 255) {
-                        uniqueColors.add(color);
-                    }
-                }
-            }
-
-            List<Color> colors = new ArrayList<>(uniqueColors);
-            paletteColors.put(name, colors);
+            LabPalette palette = new LabPalette(getOpaqueColors(PngDecoder.decode(Files.readAllBytes(path))));
+            labPalettes.put(name, palette);
             availablePalettes.add(new PaletteInfo(name, path, false));
 
-            Repal.LOGGER.info("Loaded custom palette {} with {} colors", name, colors.size());
+            Repal.LOGGER.info("Loaded custom palette {} with {} colors", name, palette.size());
         } catch (Exception e) {
             Repal.LOGGER.error("Failed to load custom palette: {}", name, e);
         }
     }
 
-    public static List<PaletteInfo> getAvailablePalettes() {
-        return new ArrayList<>(availablePalettes);
+    // Distinct fully opaque colors as 0xRRGGBB, in order of first appearance
+    private static int[] getOpaqueColors(PngDecoder.Image image) {
+        Set<Integer> uniqueColors = new LinkedHashSet<>();
+        for (int argb : image.getPixels()) {
+            if ((argb >>> 24) == 0xFF) {
+                uniqueColors.add(argb & 0xFFFFFF);
+            }
+        }
+        return uniqueColors.stream().mapToInt(Integer::intValue).toArray();
     }
 
-    public static List<Color> getPaletteColors(String paletteName) {
-        return paletteColors.getOrDefault(paletteName, Collections.emptyList());
+    public static List<PaletteInfo> getAvailablePalettes() {
+        return new ArrayList<>(availablePalettes);
     }
 
-    public static List<Color> getLayerPaletteColors(LayerInfo layer) {
+    /**
+     * Returns the layer's palette prepared for matching, or null if no palette is loaded.
+     */
+    public static LabPalette getLayerLabPalette(LayerInfo layer) {
         if (layer == null) {
-            Repal.LOGGER.warn("Attempted to get palette colors for null layer");
-            return Collections.emptyList();
+            Repal.LOGGER.warn("Attempted to get palette for null layer");
+            return null;
         }
+        LabPalette palette = labPalettes.get(resolveLayerPalette(layer));
+        return palette == null || palette.isEmpty() ? null : palette;
+    }
+
+    private static String resolveLayerPalette(LayerInfo layer) {
         String paletteName = layer.getPalette();
-        List<Color> colors = paletteColors.get(paletteName);
+        LabPalette palette = labPalettes.get(paletteName);
 
-        if (colors == null || colors.isEmpty()) {
+        if (palette == null || palette.isEmpty()) {
             Repal.LOGGER.warn("No colors found for palette '{}' in layer '{}'", paletteName, layer.getName());
             // Fall back to default palette
-            colors = paletteColors.getOrDefault("builtin_1", Collections.emptyList());
+            return "builtin_1";
         }
 
-        return colors;
+        return paletteName;
     }
 
     @Override
     public void reload(ResourceManager manager) {
-        paletteColors.clear();
+        labPalettes.clear();
         availablePalettes.clear();
+        IndexedTextureCache.clear();
 
         // Load built-in palettes
         loadPalette(manager, PALETTE_1, "builtin_1");
@@ -134,7 +126,7 @@ public class RepalResourceReloadListener implements SimpleSynchronousResourceRel
         LayerManager layerManager = LayerManager.getInstance();
         for (LayerInfo layer : layerManager.getAllLayers()) {
             String currentPalette = layer.getPalette();
-            if (!paletteColors.containsKey(currentPalette)) {
+            if (!labPalettes.containsKey(currentPalette)) {
                 Repal.LOGGER.warn("Invalid palette '{}' in layer '{}', resetting to default",
                         currentPalette, layer.getName());
                 layer.setPalette("builtin_1");
@@ -143,7 +135,7 @@ public class RepalResourceReloadListener implements SimpleSynchronousResourceRel
 
         // Log loaded palettes
         Repal.LOGGER.info("Loaded {} palettes: {}",
-                paletteColors.size(),
-                String.join(", ", paletteColors.keySet()));
+                labPalettes.size(),
+                String.join(", ", labPalettes.keySet()));
     }
 }
\ No newline at end of file
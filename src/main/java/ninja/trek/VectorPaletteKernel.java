@@ -0,0 +1,38 @@
+package ninja.trek;
+
+/**
+ * Chooses the SIMD nearest-color scan at runtime. The Vector API kernel lives in its own source
+ * set (src/vector/java, compiled with jdk.incubator.vector) and ships in the same jar, but is only
+ * loaded when the game runs with --add-modules=jdk.incubator.vector; otherwise
+ * {@link #isAvailable()} is false and palette matching takes the scalar path.
+ */
+final class VectorPaletteKernel {
+    // Implemented by VectorPaletteMatcher; only this interface is visible to the main sources
+    interface Matcher {
+        int nearest(float[] labL, float[] labA, float[] labB, float l, float a, float b);
+    }
+
+    private static final Matcher MATCHER = load();
+
+    private VectorPaletteKernel() {}
+
+    private static Matcher load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (Matcher) Class.forName("ninja.trek.VectorPaletteMatcher").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            Repal.LOGGER.info("Vector API unavailable, using scalar palette matching");
+            return null;
+        }
+    }
+
+    static boolean isAvailable() {
+        return MATCHER != null;
+    }
+
+    static int nearest(float[] labL, float[] labA, float[] labB, float l, float a, float b) {
+        return MATCHER.nearest(labL, labA, labB, l, a, b);
+    }
+}
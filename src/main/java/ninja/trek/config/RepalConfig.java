@@ -3,7 +3,10 @@ package ninja.trek.config;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import net.fabricmc.loader.api.FabricLoader;
+import ninja.trek.ImageProcessor;
+import ninja.trek.IndexedTextureCache;
 import ninja.trek.LayerManager;
+import ninja.trek.PngEncoder;
 import ninja.trek.Repal;
 import java.io.*;
 import java.nio.file.Files;
@@ -29,6 +32,28 @@ public class RepalConfig {
     // New field for layer data
     private String layerData;
 
+    // Images with at least this many pixels are recolored on several threads
+    private int parallelPixelThreshold = ImageProcessor.DEFAULT_PARALLEL_THRESHOLD;
+
+    // Memory budget for processed preview textures, in MiB
+    private int previewCacheBudgetMb = (int) (Repal.DEFAULT_PREVIEW_CACHE_BUDGET >> 20);
+
+    // Memory budget for decoded source textures shared by previews and export, in MiB
+    private int indexedTextureCacheMb = (int) (IndexedTextureCache.DEFAULT_BUDGET >> 20);
+
+    // Size cap for the on-disk preview cache, in MiB; 0 disables it
+    private int previewDiskCacheMb = (int) (Repal.DEFAULT_PREVIEW_DISK_CACHE_BUDGET >> 20);
+
+    // Write exported textures as palette-indexed PNGs when they have at most 256 colors
+    private boolean indexedPngOutput = true;
+
+    // zlib level for exported PNGs, 0 to 9
+    private int pngCompressionLevel = PngEncoder.DEFAULT_COMPRESSION_LEVEL;
+
+    // Export to resourcepacks/<pack>.zip instead of a directory, optionally without compression
+    private boolean zipPackOutput = false;
+    private boolean zipStoreEntries = false;
+
     // Private constructor to enforce singleton
     private RepalConfig() {}
 
@@ -46,6 +71,14 @@ public class RepalConfig {
                 if (INSTANCE == null) {
                     INSTANCE = new RepalConfig();
                 }
+                ImageProcessor.setParallelThreshold(INSTANCE.parallelPixelThreshold);
+                Repal.setPreviewCacheBudget((long) INSTANCE.previewCacheBudgetMb << 20);
+                IndexedTextureCache.setBudget((long) INSTANCE.indexedTextureCacheMb << 20);
+                Repal.setPreviewDiskCacheBudget((long) INSTANCE.previewDiskCacheMb << 20);
+                Repal.setIndexedPngOutput(INSTANCE.indexedPngOutput);
+                Repal.setPngCompressionLevel(INSTANCE.pngCompressionLevel);
+                Repal.setZipPackOutput(INSTANCE.zipPackOutput);
+                Repal.setZipStoreEntries(INSTANCE.zipStoreEntries);
 
                 // Import layer data if it exists
                 if (INSTANCE.layerData != null && !INSTANCE.layerData.isEmpty()) {
@@ -120,6 +153,86 @@ public class RepalConfig {
         save();
     }
 
+    public int parallelPixelThreshold() {
+        return parallelPixelThreshold;
+    }
+
+    public void setParallelPixelThreshold(int pixels) {
+        this.parallelPixelThreshold = Math.max(1, pixels);
+        ImageProcessor.setParallelThreshold(this.parallelPixelThreshold);
+        save();
+    }
+
+    public int previewCacheBudgetMb() {
+        return previewCacheBudgetMb;
+    }
+
+    public void setPreviewCacheBudgetMb(int mb) {
+        this.previewCacheBudgetMb = Math.max(1, mb);
+        Repal.setPreviewCacheBudget((long) this.previewCacheBudgetMb << 20);
+        save();
+    }
+
+    public int indexedTextureCacheMb() {
+        return indexedTextureCacheMb;
+    }
+
+    public void setIndexedTextureCacheMb(int mb) {
+        this.indexedTextureCacheMb = Math.max(1, mb);
+        IndexedTextureCache.setBudget((long) this.indexedTextureCacheMb << 20);
+        save();
+    }
+
+    public int previewDiskCacheMb() {
+        return previewDiskCacheMb;
+    }
+
+    public void setPreviewDiskCacheMb(int mb) {
+        this.previewDiskCacheMb = Math.max(0, mb);
+        Repal.setPreviewDiskCacheBudget((long) this.previewDiskCacheMb << 20);
+        save();
+    }
+
+    public boolean indexedPngOutput() {
+        return indexedPngOutput;
+    }
+
+    public void setIndexedPngOutput(boolean indexed) {
+        this.indexedPngOutput = indexed;
+        Repal.setIndexedPngOutput(indexed);
+        save();
+    }
+
+    public int pngCompressionLevel() {
+        return pngCompressionLevel;
+    }
+
+    public void setPngCompressionLevel(int level) {
+        this.pngCompressionLevel = Math.max(0, Math.min(9, level));
+        Repal.setPngCompressionLevel(this.pngCompressionLevel);
+        save();
+    }
+
+    public boolean zipPackOutput() {
+        return zipPackOutput;
+    }
+
+    public void setZipPackOutput(boolean zip) {
+        this.zipPackOutput = zip;
+        Repal.setZipPackOutput(zip);
+        save();
+    }
+
+    public boolean zipStoreEntries() {
+        return zipStoreEntries;
+    }
+
+    public void setZipStoreEntries(boolean store) {
+        this.zipStoreEntries = store;
+        Repal.setZipStoreEntries(store);
+        save();
+    }
+
     public void setPackName(String name) {
         this.packName = name == null || name.trim().isEmpty() ? "repal" : name.trim();
         save();
@@ -0,0 +1,48 @@
+package ninja.trek;
+
+import org.junit.jupiter.api.Test;
+import java.awt.Color;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ColorAdjustmentTest {
+    // Contrast, saturation and hue, including the extremes and a hue shift past a full turn
+    private static final int[][] SETTINGS = {
+            {25, 0, 0}, {0, -40, 0}, {0, 0, 37}, {-100, 100, -100}, {100, -100, 100}, {13, 57, -71}
+    };
+
+    // The private HSB conversions must give what the same steps through java.awt.Color did
+    @Test
+    void matchesAwtConversions() {
+        float[] hsb = new float[3];
+        float[] awt = new float[3];
+        for (int[] setting : SETTINGS) {
+            ColorAdjustment adjustment = ColorAdjustment.of(setting[0], setting[1], setting[2]);
+            for (int rgb = 0; rgb < 1 << 24; rgb += 13) {
+                assertEquals(awtApply(rgb, setting, awt), adjustment.apply(rgb, hsb),
+                        Integer.toHexString(rgb) + " with " + setting[0] + "/" + setting[1] + "/" + setting[2]);
+            }
+        }
+    }
+
+    @Test
+    void neutralSettingsAreTheIdentity() {
+        float[] hsb = new float[3];
+        for (int rgb = 0; rgb < 1 << 24; rgb += 7) {
+            assertEquals(rgb, ColorAdjustment.NONE.apply(rgb | 0xFF000000, hsb));
+        }
+    }
+
+    // ColorAdjustment.apply as it was written against AWT
+    private static int awtApply(int rgb, int[] setting, float[] hsb) {
+        float contrastFactor = (100.0f + setting[0]) / 100.0f;
+        float saturationFactor = (100.0f + setting[1]) / 100.0f;
+        float hueShift = setting[2] / 100.0f * 360.0f;
+        Color.RGBtoHSB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, hsb);
+        hsb[0] = (hsb[0] + (hueShift / 360.0f)) % 1.0f;
+        if (hsb[0] < 0) hsb[0] += 1.0f;
+        hsb[1] = Math.max(0.0f, Math.min(1.0f, hsb[1] * saturationFactor));
+        hsb[2] = Math.max(0.0f, Math.min(1.0f, ((hsb[2] - 0.5f) * contrastFactor) + 0.5f));
+        return Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]) & 0xFFFFFF;
+    }
+}
@@ -0,0 +1,41 @@
+package ninja.trek;
+
+import org.junit.jupiter.api.Test;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class IndexedTextureTest {
+    // Few colors index into bytes, more into chars, and a noisy image stays raw
+    private static final int[] COLOR_COUNTS = {16, 1000, 1 << 24};
+
+    @Test
+    void bandedExpandMatchesSerial() {
+        Random random = new Random(7);
+        int width = 300;
+        int height = 517;
+        try {
+            for (int colors : COLOR_COUNTS) {
+                int[] argb = new int[width * height];
+                for (int i = 0; i < argb.length; i++) {
+                    argb[i] = 0xFF000000 | (random.nextInt(colors) * 0x9E3779B1 >>> 8);
+                }
+                IndexedTexture texture = IndexedTexture.of(argb, width, height);
+
+                ImageProcessor.setParallelThreshold(Integer.MAX_VALUE);
+                int[] serial = texture.toArgb();
+                ImageProcessor.setParallelThreshold(1);
+                int[] banded = texture.toArgb();
+                IntBuffer buffer = IntBuffer.allocate(argb.length);
+                texture.expand(texture.mapColors(null), buffer);
+
+                assertArrayEquals(argb, serial);
+                assertArrayEquals(argb, banded);
+                assertArrayEquals(argb, buffer.array());
+            }
+        } finally {
+            ImageProcessor.setParallelThreshold(ImageProcessor.DEFAULT_PARALLEL_THRESHOLD);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ninja.trek;
+
+import org.junit.jupiter.api.Test;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PaletteKdTreeTest {
+    // The tree has to agree with a linear scan exactly, ties to the lowest index included
+    @Test
+    void treeMatchesLinearScan() {
+        Random random = new Random(42);
+        for (int size : new int[]{1, 2, 33, 64, 255, 256, 257, 600}) {
+            LabPalette palette = new LabPalette(randomColors(random, size));
+            PaletteKdTree tree = new PaletteKdTree(palette);
+            for (int q = 0; q < 5000; q++) {
+                float l = random.nextFloat() * 110 - 5;
+                float a = random.nextFloat() * 260 - 130;
+                float b = random.nextFloat() * 260 - 130;
+                assertEquals(tree.nearestScalar(l, a, b), tree.nearestTree(l, a, b),
+                        "palette of " + size + " at " + l + ", " + a + ", " + b);
+            }
+        }
+    }
+
+    @Test
+    void duplicateColorsResolveToTheFirst() {
+        Random random = new Random(7);
+        int[] colors = randomColors(random, 300);
+        // Every color appears twice, the copies in the second half
+        int[] doubled = new int[colors.length * 2];
+        System.arraycopy(colors, 0, doubled, 0, colors.length);
+        System.arraycopy(colors, 0, doubled, colors.length, colors.length);
+        LabPalette palette = new LabPalette(doubled);
+        PaletteKdTree tree = new PaletteKdTree(palette);
+        for (int i = 0; i < colors.length; i++) {
+            int expected = tree.nearestScalar(palette.labL[i], palette.labA[i], palette.labB[i]);
+            assertEquals(expected, tree.nearestTree(palette.labL[i], palette.labA[i], palette.labB[i]));
+            assertEquals(expected, palette.nearest(palette.labL[i], palette.labA[i], palette.labB[i]));
+        }
+    }
+
+    private static int[] randomColors(Random random, int size) {
+        int[] colors = new int[size];
+        for (int i = 0; i < size; i++) {
+            colors[i] = random.nextInt(1 << 24);
+        }
+        return colors;
+    }
+}
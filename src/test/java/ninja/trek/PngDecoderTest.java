@@ -0,0 +1,167 @@
+package ninja.trek;
+
+import org.junit.jupiter.api.Test;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PngDecoderTest {
+    private static final int WIDTH = 29;
+    private static final int HEIGHT = 23;
+
+    @Test
+    void matchesImageIoForColorImages() throws IOException {
+        Random random = new Random(21);
+        BufferedImage[] images = {
+                randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), random),
+                randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB), random),
+                randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED), random),
+                randomIndexed(1, false, random),
+                randomIndexed(2, false, random),
+                randomIndexed(4, true, random),
+                randomIndexed(8, true, random),
+        };
+        for (BufferedImage image : images) {
+            for (boolean interlaced : new boolean[]{false, true}) {
+                byte[] png = write(image, interlaced);
+                BufferedImage expected = ImageIO.read(new ByteArrayInputStream(png));
+                assertDecodesTo(expected.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH), png);
+            }
+        }
+    }
+
+    // ImageIO converts gray to sRGB; we keep the sample like Minecraft does, see the class javadoc
+    @Test
+    void graySamplesAreKeptAsIs() throws IOException {
+        Random random = new Random(22);
+        for (int bits : new int[]{8, 16}) {
+            for (boolean alpha : new boolean[]{false, true}) {
+                int dataType = bits == 8 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
+                ComponentColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                        alpha, false, alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, dataType);
+                BufferedImage image = new BufferedImage(model,
+                        model.createCompatibleWritableRaster(WIDTH, HEIGHT), false, null);
+                int[] expected = fillSamples(image.getRaster(), bits, random);
+                for (boolean interlaced : new boolean[]{false, true}) {
+                    assertDecodesTo(expected, write(image, interlaced));
+                }
+            }
+        }
+    }
+
+    // 16-bit samples are reduced to their high byte
+    @Test
+    void sixteenBitColorKeepsTheHighByte() throws IOException {
+        Random random = new Random(23);
+        for (boolean alpha : new boolean[]{false, true}) {
+            ComponentColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                    alpha, false, alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+            BufferedImage image = new BufferedImage(model,
+                    model.createCompatibleWritableRaster(WIDTH, HEIGHT), false, null);
+            assertDecodesTo(fillSamples(image.getRaster(), 16, random), write(image, false));
+        }
+    }
+
+    @Test
+    void rejectsDamagedFiles() throws IOException {
+        byte[] png = write(randomImage(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), new Random(24)), false);
+        assertThrows(IOException.class, () -> PngDecoder.decode(new byte[]{1, 2, 3}));
+        byte[] truncated = new byte[png.length / 2];
+        System.arraycopy(png, 0, truncated, 0, truncated.length);
+        assertThrows(IOException.class, () -> PngDecoder.decode(truncated));
+    }
+
+    private static void assertDecodesTo(int[] expected, byte[] png) throws IOException {
+        PngDecoder.Image decoded = PngDecoder.decode(png);
+        assertEquals(WIDTH, decoded.getWidth());
+        assertEquals(HEIGHT, decoded.getHeight());
+        assertArrayEquals(expected, decoded.getPixels());
+    }
+
+    private static BufferedImage randomImage(BufferedImage image, Random random) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage randomIndexed(int bits, boolean alpha, Random random) {
+        int size = 1 << bits;
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        byte[] a = new byte[size];
+        random.nextBytes(r);
+        random.nextBytes(g);
+        random.nextBytes(b);
+        random.nextBytes(a);
+        IndexColorModel model = alpha
+                ? new IndexColorModel(bits, size, r, g, b, a)
+                : new IndexColorModel(bits, size, r, g, b);
+        BufferedImage image = bits == 8
+                ? new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED, model)
+                : new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY, model);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setSample(x, y, 0, random.nextInt(size));
+            }
+        }
+        return image;
+    }
+
+    // Fills every band with random samples and returns the pixels we expect: high bytes, gray spread to RGB
+    private static int[] fillSamples(WritableRaster raster, int bits, Random random) {
+        int bands = raster.getNumBands();
+        boolean gray = bands <= 2;
+        boolean alpha = bands == 2 || bands == 4;
+        int[] expected = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int[] high = new int[bands];
+                for (int band = 0; band < bands; band++) {
+                    int sample = random.nextInt(1 << bits);
+                    raster.setSample(x, y, band, sample);
+                    high[band] = sample >> (bits - 8);
+                }
+                int a = alpha ? high[bands - 1] : 0xFF;
+                int rgb = gray ? high[0] * 0x010101 : (high[0] << 16) | (high[1] << 8) | high[2];
+                expected[y * WIDTH + x] = (a << 24) | rgb;
+            }
+        }
+        return expected;
+    }
+
+    private static byte[] write(BufferedImage image, boolean interlaced) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(interlaced ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+}
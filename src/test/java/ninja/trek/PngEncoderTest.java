@@ -0,0 +1,81 @@
+package ninja.trek;
+
+import org.junit.jupiter.api.Test;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PngEncoderTest {
+    // Odd sizes so packed rows end mid-byte
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 19;
+    private static final int[] LEVELS = {0, 1, PngEncoder.DEFAULT_COMPRESSION_LEVEL, 9};
+
+    @Test
+    void truecolorRoundTrips() throws IOException {
+        Random random = new Random(11);
+        for (boolean alpha : new boolean[]{false, true}) {
+            int[] argb = new int[WIDTH * HEIGHT];
+            for (int i = 0; i < argb.length; i++) {
+                // Smooth runs next to noise, so every filter type gets picked somewhere
+                int color = i % 3 == 0 ? random.nextInt() : i * 0x010203;
+                argb[i] = alpha ? color : color | 0xFF000000;
+            }
+            for (int level : LEVELS) {
+                assertDecodesTo(argb, PngEncoder.encode(argb, WIDTH, HEIGHT, level));
+            }
+        }
+    }
+
+    @Test
+    void indexedRoundTripsAtEveryBitDepth() throws IOException {
+        Random random = new Random(12);
+        // 1, 2, 4 and 8 bits per pixel, with and without translucent palette entries
+        for (int colors : new int[]{1, 2, 3, 4, 16, 17, 256}) {
+            for (boolean alpha : new boolean[]{false, true}) {
+                int[] palette = new int[colors];
+                for (int i = 0; i < colors; i++) {
+                    palette[i] = alpha && i % 2 == 1 ? random.nextInt() : random.nextInt() | 0xFF000000;
+                }
+                int[] argb = new int[WIDTH * HEIGHT];
+                for (int i = 0; i < argb.length; i++) {
+                    argb[i] = palette[i < colors ? i : random.nextInt(colors)];
+                }
+                IndexedTexture texture = IndexedTexture.of(argb, WIDTH, HEIGHT);
+                for (int level : LEVELS) {
+                    byte[] png = PngEncoder.encode(texture, level);
+                    assertNotNull(png, colors + " colors");
+                    assertDecodesTo(argb, png);
+                }
+            }
+        }
+    }
+
+    @Test
+    void indexedRefusesMoreThan256Colors() {
+        int[] argb = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xFF000000 | i;
+        }
+        assertNull(PngEncoder.encode(IndexedTexture.of(argb, WIDTH, HEIGHT), PngEncoder.DEFAULT_COMPRESSION_LEVEL));
+    }
+
+    // Both our decoder and ImageIO must read back exactly the encoded pixels
+    private static void assertDecodesTo(int[] argb, byte[] png) throws IOException {
+        PngDecoder.Image decoded = PngDecoder.decode(png);
+        assertEquals(WIDTH, decoded.getWidth());
+        assertEquals(HEIGHT, decoded.getHeight());
+        assertArrayEquals(argb, decoded.getPixels());
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(image);
+        assertArrayEquals(argb, image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+    }
+}
@@ -0,0 +1,43 @@
+package ninja.trek;
+
+import org.junit.jupiter.api.Test;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class VectorPaletteKernelTest {
+    // The SIMD scan must pick the same index as the scalar one, including on ties and in the tail
+    @Test
+    void vectorMatchesScalarScan() {
+        assumeTrue(VectorPaletteKernel.isAvailable(), "run with --add-modules=jdk.incubator.vector");
+        Random random = new Random(1234);
+        for (int size = 1; size <= 300; size += size < 40 ? 1 : 13) {
+            int[] colors = new int[size];
+            for (int i = 0; i < size; i++) {
+                // Few distinct values, so equal distances come up often
+                colors[i] = random.nextInt(8) * 0x242424 + (random.nextBoolean() ? 0 : random.nextInt(1 << 24));
+            }
+            LabPalette palette = new LabPalette(colors);
+            PaletteKdTree tree = new PaletteKdTree(palette);
+            for (int q = 0; q < 2000; q++) {
+                float l;
+                float a;
+                float b;
+                if (q % 4 == 0) {
+                    int i = random.nextInt(size);
+                    l = palette.labL[i];
+                    a = palette.labA[i];
+                    b = palette.labB[i];
+                } else {
+                    l = random.nextFloat() * 100;
+                    a = random.nextFloat() * 256 - 128;
+                    b = random.nextFloat() * 256 - 128;
+                }
+                assertEquals(tree.nearestScalar(l, a, b),
+                        VectorPaletteKernel.nearest(palette.labL, palette.labA, palette.labB, l, a, b),
+                        "palette of " + size);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ninja.trek;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ZipPackOutputTest {
+    // Text, data that deflates well, and data that doesn't (kept stored even when deflating)
+    private static Map<String, byte[]> sampleFiles() {
+        byte[] noise = new byte[5000];
+        new Random(3).nextBytes(noise);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("pack.mcmeta", "{\"pack\":{\"pack_format\":34}}".getBytes(StandardCharsets.UTF_8));
+        files.put("assets/minecraft/textures/block/stone.png", new byte[10000]);
+        files.put("assets/minecraft/textures/block/dirt.png", noise);
+        files.put("assets/minecraft/textures/block/empty.png", new byte[0]);
+        return files;
+    }
+
+    @Test
+    void writesArchivesThatZipFileReads() throws IOException {
+        Path dir = Files.createTempDirectory("repal-zip");
+        try {
+            for (boolean store : new boolean[]{false, true}) {
+                Path zip = dir.resolve(store ? "stored.zip" : "deflated.zip");
+                Map<String, byte[]> files = sampleFiles();
+                try (ZipPackOutput output = ZipPackOutput.open(zip, store)) {
+                    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                        output.write(output.prepare(file.getKey(), file.getValue()));
+                    }
+                    output.finish();
+                }
+                assertContents(zip, files);
+                assertFalse(Files.exists(dir.resolve(zip.getFileName() + ".tmp")));
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    void keepsUnchangedEntriesFromThePreviousArchive() throws IOException {
+        Path dir = Files.createTempDirectory("repal-zip");
+        try {
+            Path zip = dir.resolve("pack.zip");
+            Map<String, byte[]> files = sampleFiles();
+            try (ZipPackOutput output = ZipPackOutput.open(zip, false)) {
+                for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                    output.write(output.prepare(file.getKey(), file.getValue()));
+                }
+                output.finish();
+            }
+
+            // Second export: keep two files, rewrite one, and leave the last one out
+            String stone = "assets/minecraft/textures/block/stone.png";
+            String dirt = "assets/minecraft/textures/block/dirt.png";
+            String empty = "assets/minecraft/textures/block/empty.png";
+            byte[] newStone = "recolored".getBytes(StandardCharsets.UTF_8);
+            try (ZipPackOutput output = ZipPackOutput.open(zip, false)) {
+                assertArrayEquals(files.get(stone), output.readExisting(stone));
+                assertArrayEquals(files.get(dirt), output.readExisting(dirt));
+                assertNull(output.readExisting("missing.png"));
+                output.keep("pack.mcmeta");
+                output.keep(dirt);
+                output.write(output.prepare(stone, newStone));
+                output.remove(empty);
+                output.finish();
+            }
+            files.put(stone, newStone);
+            files.remove(empty);
+            assertContents(zip, files);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    void closingWithoutFinishingKeepsThePreviousArchive() throws IOException {
+        Path dir = Files.createTempDirectory("repal-zip");
+        try {
+            Path zip = dir.resolve("pack.zip");
+            Map<String, byte[]> files = sampleFiles();
+            try (ZipPackOutput output = ZipPackOutput.open(zip, true)) {
+                for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                    output.write(output.prepare(file.getKey(), file.getValue()));
+                }
+                output.finish();
+            }
+            try (ZipPackOutput output = ZipPackOutput.open(zip, true)) {
+                output.write(output.prepare("pack.mcmeta", new byte[]{1, 2, 3}));
+            }
+            assertContents(zip, files);
+            assertFalse(Files.exists(dir.resolve("pack.zip.tmp")));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void assertContents(Path zip, Map<String, byte[]> files) throws IOException {
+        try (ZipFile archive = new ZipFile(zip.toFile())) {
+            assertEquals(files.size(), archive.size());
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                ZipEntry entry = archive.getEntry(file.getKey());
+                assertNotNull(entry, file.getKey());
+                try (InputStream in = archive.getInputStream(entry)) {
+                    // Reading to the end also checks the CRC
+                    assertArrayEquals(file.getValue(), in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
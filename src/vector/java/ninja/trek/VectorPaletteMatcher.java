@@ -0,0 +1,86 @@
+package ninja.trek;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Linear nearest-color scan that compares a whole vector of palette entries per step. Loaded
+ * reflectively by {@link VectorPaletteKernel}, and only once the jdk.incubator.vector module is
+ * known to be present. Distances are computed with the same operations, in the same order, as
+ * the scalar scan (no FMA), so the result is bit-identical.
+ */
+final class VectorPaletteMatcher implements VectorPaletteKernel.Matcher {
+    VectorPaletteMatcher() {
+        // A single lane would only be a slower scalar scan
+        if (Kernel.SPECIES.length() <= 1) {
+            throw new UnsupportedOperationException("No usable vector shape");
+        }
+    }
+
+    @Override
+    public int nearest(float[] labL, float[] labA, float[] labB, float l, float a, float b) {
+        return Kernel.nearest(labL, labA, labB, l, a, b);
+    }
+
+    // The vector constants, set up when the first matcher is created
+    private static final class Kernel {
+        static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+        static final VectorSpecies<Integer> INDEX_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+        static final IntVector LANE_INDICES = IntVector.zero(INDEX_SPECIES).addIndex(1);
+
+        static int nearest(float[] labL, float[] labA, float[] labB, float l, float a, float b) {
+            int size = labL.length;
+            int lanes = SPECIES.length();
+            int upper = SPECIES.loopBound(size);
+
+            int closest = -1;
+            float minDistance = Float.MAX_VALUE;
+
+            if (upper > 0) {
+                FloatVector queryL = FloatVector.broadcast(SPECIES, l);
+                FloatVector queryA = FloatVector.broadcast(SPECIES, a);
+                FloatVector queryB = FloatVector.broadcast(SPECIES, b);
+                FloatVector best = FloatVector.broadcast(SPECIES, Float.MAX_VALUE);
+                IntVector bestIndex = IntVector.broadcast(INDEX_SPECIES, -1);
+
+                // Each lane keeps the first minimum among the indices it has seen
+                for (int i = 0; i < upper; i += lanes) {
+                    FloatVector deltaL = queryL.sub(FloatVector.fromArray(SPECIES, labL, i));
+                    FloatVector deltaA = queryA.sub(FloatVector.fromArray(SPECIES, labA, i));
+                    FloatVector deltaB = queryB.sub(FloatVector.fromArray(SPECIES, labB, i));
+                    FloatVector distance = deltaL.mul(deltaL).add(deltaA.mul(deltaA)).add(deltaB.mul(deltaB));
+
+                    VectorMask<Float> closer = distance.compare(VectorOperators.LT, best);
+                    best = best.blend(distance, closer);
+                    bestIndex = bestIndex.blend(LANE_INDICES.add(i), closer.cast(INDEX_SPECIES));
+                }
+
+                // Across lanes: smallest distance, ties to the lowest index
+                for (int lane = 0; lane < lanes; lane++) {
+                    float distance = best.lane(lane);
+                    int index = bestIndex.lane(lane);
+                    if (index >= 0 && (distance < minDistance || (distance == minDistance && index < closest))) {
+                        minDistance = distance;
+                        closest = index;
+                    }
+                }
+            }
+
+            // Tail indices are all higher, so a strict comparison keeps the tie-break
+            for (int i = upper; i < size; i++) {
+                float deltaL = l - labL[i];
+                float deltaA = a - labA[i];
+                float deltaB = b - labB[i];
+                float distance = deltaL * deltaL + deltaA * deltaA + deltaB * deltaB;
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    closest = i;
+                }
+            }
+            return closest;
+        }
+    }
+}